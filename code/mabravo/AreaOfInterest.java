@@ -23,7 +23,7 @@ package mabravo;
 
 import java.awt.geom.Line2D;
 import java.awt.geom.Point2D;
-import java.util.Vector;
+import java.util.List;
 import java.util.Hashtable;
 import java.util.Set;
 import java.util.Iterator;
@@ -39,6 +39,17 @@ public class AreaOfInterest
 {
 	public Point2D[] aoiPoints=null;
 
+	// the vertices of the AoI in counterclockwise order, starting from aoiPoints[0], and their bounding box
+	private double[] fan_x;
+	private double[] fan_y;
+	private double min_x, max_x, min_y, max_y;
+	// the lower and upper chains of the AoI, from its leftmost to its rightmost vertices
+	private double[] lower_x, lower_y;
+	private double[] upper_x, upper_y;
+	// alias table over the triangles (0, i+1, i+2) of the fan, weighted by their area
+	private double[] alias_probability;
+	private int[] alias;
+
 	public static int global_debug = 0;
 	private double crossProduct(Point2D[] p) {
 		return crossProduct(p[0], p[1], p[2]);
@@ -52,33 +63,52 @@ public class AreaOfInterest
 		return x1*y2-x2*y1;
 	}
 
-	private static Point2D[] extractPointsForConvex(Point2D[] allPoints) {
+	/**
+	 * Convex hull of the points with Andrew's monotone chain, in O(n log n).
+	 * The hull starts from the leftmost point (the lowest one on ties) and goes clockwise,
+	 * as the gift wrapping used before did. Duplicate points and points in the middle of a
+	 * side are left out.
+	 */
+	private static Point2D[] extractPointsForConvex(final Point2D[] allPoints) {
 		if (allPoints.length < 3) return null;
-		Vector<Integer> ret = new Vector<Integer>();
-		int currentPoint = 0;
-		for (int i=0 ; i<allPoints.length ; i++) {
-			if (allPoints[i].getX() < allPoints[currentPoint].getX())
-				currentPoint = i;
-		}
-		boolean go_on = true;
-		int nextPoint;
-		while (go_on) {
-			ret.add(currentPoint);
-			nextPoint = (currentPoint+1)%allPoints.length;
-			for (int i = 0 ; i < allPoints.length ; i++)
-				if (i!=currentPoint && i!=nextPoint)
-					if (crossProduct(allPoints[currentPoint], allPoints[nextPoint], allPoints[i]) < 0)
-						nextPoint = i;
-			if (nextPoint == ret.get(0)) go_on = false;
-			else currentPoint = nextPoint;
-		}
-		Point2D[] result = new Point2D[ret.size()];
-		for (int i = 0 ; i < ret.size() ; i++) {
-			result[i] = allPoints[ret.get(i)];
+		int n = allPoints.length;
+		// sorted by x, then y; the sort is stable, so duplicates keep their order
+		Point2D[] order = allPoints.clone();
+		java.util.Arrays.sort(order, new java.util.Comparator<Point2D>() {
+			public int compare(Point2D p, Point2D q) {
+				int c = Double.compare(p.getX(), q.getX());
+				if (c == 0) c = Double.compare(p.getY(), q.getY());
+				return c;
+			}
+		});
+
+		// lower chain from left to right, then upper chain from right to left: counterclockwise
+		Point2D[] hull = new Point2D[2*n];
+		int k = 0;
+		for (int i=0 ; i<n ; i++) {
+			while (k >= 2 && turn(hull[k-2], hull[k-1], order[i]) <= 0) k--;
+			hull[k++] = order[i];
+		}
+		for (int i=n-2, lower=k+1 ; i>=0 ; i--) {
+			while (k >= lower && turn(hull[k-2], hull[k-1], order[i]) <= 0) k--;
+			hull[k++] = order[i];
 		}
+		// the first point closes the chain
+		int size = Math.max(k-1, 1);
+
+		// same start, opposite direction
+		Point2D[] result = new Point2D[size];
+		result[0] = hull[0];
+		for (int i = 1 ; i < size ; i++)
+			result[i] = hull[size-i];
 		return result;
 	}
 
+	// > 0 if p0, p1, p2 turn counterclockwise
+	private static double turn(Point2D p0, Point2D p1, Point2D p2) {
+		return (p1.getX()-p0.getX())*(p2.getY()-p0.getY()) - (p1.getY()-p0.getY())*(p2.getX()-p0.getX());
+	}
+
 	private boolean isConvex(Point2D[] p) {
 		int plength = p.length;
 
@@ -100,10 +130,101 @@ public class AreaOfInterest
 	}
 
 	public boolean intersect(line2d l1, boolean ignore_ends) {
+		return intersect(l1.getX1(), l1.getY1(), l1.getX2(), l1.getY2(), ignore_ends);
+	}
+
+	/**
+	 * Tells if the segment from (x1, y1) to (x2, y2) crosses the borders of the AoI
+	 */
+	public boolean intersect(double x1, double y1, double x2, double y2, boolean ignore_ends) {
+		if (Math.max(x1, x2) < min_x || Math.min(x1, x2) > max_x || Math.max(y1, y2) < min_y || Math.min(y1, y2) > max_y)
+			return false;
+		if (fan_x.length < 3) return intersectBySides(x1, y1, x2, y2);
+		if (x1 > x2) {
+			double t = x1; x1 = x2; x2 = t;
+			t = y1; y1 = y2; y2 = t;
+		}
+		if (x1 == x2) {
+			// a vertical segment meets the chains at one point each, or the vertical sides of the AoI
+			double upper = chain_y(upper_x, upper_y, x1);
+			double lower = chain_y(lower_x, lower_y, x1);
+			double ylo = Math.min(y1, y2);
+			double yhi = Math.max(y1, y2);
+			if (x1 == min_x || x1 == max_x) return ylo <= upper && yhi >= lower;
+			return (ylo <= upper && upper <= yhi) || (ylo <= lower && lower <= yhi);
+		}
+		double slope = (y2-y1)/(x2-x1);
+		double lo = Math.max(x1, min_x);
+		double hi = Math.min(x2, max_x);
+		double s_lo = lo == x1 ? y1 : y1 + slope*(lo-x1);
+		double s_hi = hi == x2 ? y2 : y1 + slope*(hi-x1);
+		// crossing the vertical side, or the vertex, at the left or right end of the AoI
+		if (lo == min_x && s_lo <= chain_y(upper_x, upper_y, lo) && s_lo >= chain_y(lower_x, lower_y, lo)) return true;
+		if (hi == max_x && s_hi <= chain_y(upper_x, upper_y, hi) && s_hi >= chain_y(lower_x, lower_y, hi)) return true;
+		return crossesChain(upper_x, upper_y, x1, y1, slope, lo, s_lo, hi, s_hi, true)
+			|| crossesChain(lower_x, lower_y, x1, y1, slope, lo, s_lo, hi, s_hi, false);
+	}
+
+	/**
+	 * Tells if the segment, restricted to [lo, hi], meets a chain of the AoI. The height of
+	 * the segment over the upper chain is convex, and over the lower chain it is concave, so
+	 * its extreme on one side is at the ends of [lo, hi] and on the other side at the vertex
+	 * of the chain found by a binary search.
+	 */
+	private static boolean crossesChain(double[] cx, double[] cy, double x1, double y1, double slope,
+		double lo, double s_lo, double hi, double s_hi, boolean upper) {
+		// sign so that the height of the segment over the chain is convex
+		double sign = upper ? 1 : -1;
+		double h_lo = sign*(s_lo - chain_y(cx, cy, lo));
+		double h_hi = sign*(s_hi - chain_y(cx, cy, hi));
+		if (Math.max(h_lo, h_hi) < 0) return false;
+		if (Math.min(h_lo, h_hi) <= 0) return true;
+		// the vertices strictly inside (lo, hi)
+		int first = first_after(cx, lo);
+		int last = first_after(cx, hi) - 1;
+		if (last >= 0 && cx[last] == hi) last--;
+		if (first > last) return false;
+		// the lowest of the convex sequence of heights at those vertices
+		while (first < last) {
+			int mid = (first + last) >>> 1;
+			double h_mid = sign*(y1 + slope*(cx[mid]-x1) - cy[mid]);
+			double h_next = sign*(y1 + slope*(cx[mid+1]-x1) - cy[mid+1]);
+			if (h_next < h_mid) first = mid+1;
+			else last = mid;
+		}
+		return sign*(y1 + slope*(cx[first]-x1) - cy[first]) <= 0;
+	}
+
+	// index of the first vertex of a chain with x larger than the given one
+	private static int first_after(double[] cx, double x) {
+		int lo = 0;
+		int hi = cx.length;
+		while (lo < hi) {
+			int mid = (lo + hi) >>> 1;
+			if (cx[mid] <= x) lo = mid+1;
+			else hi = mid;
+		}
+		return lo;
+	}
+
+	// height of a chain at x, between min_x and max_x
+	private static double chain_y(double[] cx, double[] cy, double x) {
+		int i = first_after(cx, x);
+		if (i == 0) return cy[0];
+		if (i == cx.length) return cy[cx.length-1];
+		if (cx[i-1] == x) return cy[i-1];
+		return cy[i-1] + (cy[i]-cy[i-1])*(x-cx[i-1])/(cx[i]-cx[i-1]);
+	}
+
+	/**
+	 * Tells if the segment from (x1, y1) to (x2, y2) crosses any of the sides of the AoI,
+	 * one by one. Only used for degenerate AoIs
+	 */
+	private boolean intersectBySides(double x1, double y1, double x2, double y2) {
 		int plength = aoiPoints.length;
 		for (int i=0;i<plength;i++)
-			if (Line2D.linesIntersect(l1.getX1(), l1.getY1(),
-				l1.getX2(), l1.getY2(),
+			if (Line2D.linesIntersect(x1, y1,
+				x2, y2,
 				aoiPoints[i].getX(), aoiPoints[i].getY(),
 				aoiPoints[(i+1)%plength].getX(), aoiPoints[(i+1)%plength].getY())
 				) return true;
@@ -114,13 +235,167 @@ public class AreaOfInterest
 	public AreaOfInterest(int x,int y, Point2D[] points)
 	{
 		aoiPoints = extractPointsForConvex(points);
+		if (aoiPoints != null) buildFan();
+	}
+
+	/**
+	 * Prepares the fan of triangles from the first vertex of the AoI used by isInAoI
+	 */
+	private void buildFan() {
+		int n = aoiPoints.length;
+		double area = 0;
+		for (int i=0;i<n;i++)
+			area += aoiPoints[i].getX()*aoiPoints[(i+1)%n].getY() - aoiPoints[(i+1)%n].getX()*aoiPoints[i].getY();
+		fan_x = new double[n];
+		fan_y = new double[n];
+		min_x = min_y = Double.MAX_VALUE;
+		max_x = max_y = -Double.MAX_VALUE;
+		for (int i=0;i<n;i++) {
+			// walk the vertices backwards if the AoI is clockwise
+			Point2D p = aoiPoints[area >= 0 ? i : (n-i)%n];
+			fan_x[i] = p.getX();
+			fan_y[i] = p.getY();
+			min_x = Math.min(min_x, fan_x[i]);
+			max_x = Math.max(max_x, fan_x[i]);
+			min_y = Math.min(min_y, fan_y[i]);
+			max_y = Math.max(max_y, fan_y[i]);
+		}
+
+		// counterclockwise, the lower chain goes from the lowest leftmost vertex to the
+		// lowest rightmost one, the upper chain from the highest rightmost to the highest leftmost
+		int left_low = 0, left_high = 0, right_low = 0, right_high = 0;
+		for (int i=1;i<n;i++) {
+			if (fan_x[i] < fan_x[left_low] || (fan_x[i] == fan_x[left_low] && fan_y[i] < fan_y[left_low])) left_low = i;
+			if (fan_x[i] < fan_x[left_high] || (fan_x[i] == fan_x[left_high] && fan_y[i] > fan_y[left_high])) left_high = i;
+			if (fan_x[i] > fan_x[right_low] || (fan_x[i] == fan_x[right_low] && fan_y[i] < fan_y[right_low])) right_low = i;
+			if (fan_x[i] > fan_x[right_high] || (fan_x[i] == fan_x[right_high] && fan_y[i] > fan_y[right_high])) right_high = i;
+		}
+		int nlower = (right_low - left_low + n) % n + 1;
+		lower_x = new double[nlower];
+		lower_y = new double[nlower];
+		for (int k=0;k<nlower;k++) {
+			lower_x[k] = fan_x[(left_low+k)%n];
+			lower_y[k] = fan_y[(left_low+k)%n];
+		}
+		int nupper = (left_high - right_high + n) % n + 1;
+		upper_x = new double[nupper];
+		upper_y = new double[nupper];
+		for (int k=0;k<nupper;k++) {
+			upper_x[nupper-1-k] = fan_x[(right_high+k)%n];
+			upper_y[nupper-1-k] = fan_y[(right_high+k)%n];
+		}
+
+		buildAlias();
+	}
+
+	/**
+	 * Prepares the alias table used by randomPoint to pick a triangle of the fan
+	 * with probability proportional to its area, in constant time
+	 */
+	private void buildAlias() {
+		int m = fan_x.length - 2;
+		if (m < 1) return;
+		double[] scaled = new double[m];
+		double total = 0;
+		for (int i=0;i<m;i++) {
+			scaled[i] = side(fan_x[0], fan_y[0], fan_x[i+1], fan_y[i+1], fan_x[i+2], fan_y[i+2]);
+			total += scaled[i];
+		}
+		alias_probability = new double[m];
+		alias = new int[m];
+		int[] small = new int[m];
+		int[] large = new int[m];
+		int nsmall = 0, nlarge = 0;
+		for (int i=0;i<m;i++) {
+			scaled[i] = scaled[i] * m / total;
+			if (scaled[i] < 1) small[nsmall++] = i;
+			else large[nlarge++] = i;
+		}
+		while (nsmall > 0 && nlarge > 0) {
+			int l = small[--nsmall];
+			int g = large[--nlarge];
+			alias_probability[l] = scaled[l];
+			alias[l] = g;
+			scaled[g] = (scaled[g] + scaled[l]) - 1;
+			if (scaled[g] < 1) small[nsmall++] = g;
+			else large[nlarge++] = g;
+		}
+		// what is left is 1 up to rounding errors
+		while (nlarge > 0) {
+			int g = large[--nlarge];
+			alias_probability[g] = 1;
+			alias[g] = g;
+		}
+		while (nsmall > 0) {
+			int l = small[--nsmall];
+			alias_probability[l] = 1;
+			alias[l] = l;
+		}
+	}
+
+	/**
+	 * Draws a point uniformly at random in the AoI, in constant time
+	 */
+	public Point2D randomPoint(java.util.Random r) {
+		if (alias == null) return aoiPoints[0];
+		// a triangle of the fan, with probability proportional to its area
+		double u = r.nextDouble() * alias.length;
+		int t = (int)u;
+		if (t == alias.length) t--;
+		if (u - t >= alias_probability[t]) t = alias[t];
+		// a point of the parallelogram, folded back into the triangle
+		double a = r.nextDouble();
+		double b = r.nextDouble();
+		if (a + b > 1) {
+			a = 1 - a;
+			b = 1 - b;
+		}
+		double x = fan_x[0] + a*(fan_x[t+1]-fan_x[0]) + b*(fan_x[t+2]-fan_x[0]);
+		double y = fan_y[0] + a*(fan_y[t+1]-fan_y[0]) + b*(fan_y[t+2]-fan_y[0]);
+		return new Point2D.Double(x, y);
+	}
+
+	// > 0 if (x, y) is to the left of the line from (x0, y0) to (x1, y1)
+	private static double side(double x0, double y0, double x1, double y1, double x, double y) {
+		return (x1-x0)*(y-y0) - (y1-y0)*(x-x0);
 	}
 
 	public boolean isInAoI(Point2D punto)
+	{
+		return isInAoI(punto.getX(), punto.getY());
+	}
+
+	/**
+	 * Tells if the point (x, y) lies in the AoI
+	 */
+	public boolean isInAoI(double x, double y)
+	{
+		if (x < min_x || x > max_x || y < min_y || y > max_y) return false;
+		int n = fan_x.length;
+		if (n < 3) return isInAoIByCrossings(x, y);
+		// the point must lie between the first and the last side leaving vertex 0
+		if (side(fan_x[0], fan_y[0], fan_x[1], fan_y[1], x, y) < 0) return false;
+		if (side(fan_x[0], fan_y[0], fan_x[n-1], fan_y[n-1], x, y) > 0) return false;
+		// the triangle (0, lo, lo+1) of the fan containing the direction of the point
+		int lo = 1;
+		int hi = n-1;
+		while (hi - lo > 1) {
+			int mid = (lo + hi) >>> 1;
+			if (side(fan_x[0], fan_y[0], fan_x[mid], fan_y[mid], x, y) >= 0) lo = mid;
+			else hi = mid;
+		}
+		return side(fan_x[lo], fan_y[lo], fan_x[lo+1], fan_y[lo+1], x, y) >= 0;
+	}
+
+	/**
+	 * Tells if the point (x, y) lies in the AoI, counting the crossings of a segment
+	 * from the point to the origin with the borders of the AoI. Only used for degenerate AoIs
+	 */
+	private boolean isInAoIByCrossings(double x, double y)
 	{
 		int count_intersect=0;
 		for (int i=0;i<aoiPoints.length;i++)
-			if (Line2D.linesIntersect(punto.getX(), punto.getY(),
+			if (Line2D.linesIntersect(x, y,
 				0, 0,
 				aoiPoints[i].getX(), aoiPoints[i].getY(),
 				aoiPoints[(i+1)%aoiPoints.length].getX(), aoiPoints[(i+1)%aoiPoints.length].getY())
@@ -130,21 +405,15 @@ public class AreaOfInterest
 		return false;
 	}
 
-	public boolean isInAoI(Vector<line2d> allEdges)
+	public boolean isInAoI(List<line2d> allEdges)
 	{
 		int itero = 0;
 		Iterator<line2d> it4 = allEdges.iterator();
 		while (it4.hasNext ()) {
 			if (global_debug>99) System.err.println("isInAoI iteration " + itero); itero++;
 			line2d l = it4.next();
-			for (int i=0;i<aoiPoints.length;i++) {
-				// verify if an edge intersects the borders of the AoI
-				if (Line2D.linesIntersect(l.getX1(), l.getY1(),
-					l.getX2(), l.getY2(),
-					aoiPoints[i].getX(), aoiPoints[i].getY(),
-					aoiPoints[(i+1)%aoiPoints.length].getX(), aoiPoints[(i+1)%aoiPoints.length].getY())
-					) return true;
-			}
+			// verify if an edge intersects the borders of the AoI
+			if (intersect(l, false)) return true;
 		}
 		if (global_debug>99) System.err.println("does NOT cross the borders");
 		Point2D v1 = allEdges.get(0).getP1();
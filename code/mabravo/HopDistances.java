@@ -0,0 +1,94 @@
+/*
+ * MABRAVO, AoI-based Multicast Routing over Voronoi Overlays with minimal overhead
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This file is part of MABRAVO.
+ *
+ * MABRAVO is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MABRAVO is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MABRAVO.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package mabravo;
+
+/**
+ * The hop distances of the nodes from the source of a breadth first visit,
+ * with the number of nodes reached and the sum of their distances. The
+ * distances are kept in shorts when they fit, in ints otherwise.
+ *
+ * @author Michele Albano
+ */
+public class HopDistances
+{
+	private final short[] short_hops;
+	private final int[] int_hops;
+	private final int reached;
+	private final long total;
+
+	/**
+	 * Copies the result of a visit
+	 *
+	 * @param ws the workspace the visit was left in
+	 * @param size the number of nodes of the network
+	 */
+	HopDistances(VisitWorkspace ws, int size) {
+		int farthest = 0;
+		long sum = 0;
+		for (int k = 0; k < ws.number_reached; k++) {
+			int hops = ws.visit_in_bfs[ws.reached[k]];
+			farthest = Math.max(farthest, hops);
+			sum += hops;
+		}
+		reached = ws.number_reached;
+		total = sum;
+		if (farthest <= Short.MAX_VALUE) {
+			short_hops = new short[size];
+			java.util.Arrays.fill(short_hops, (short)-1);
+			for (int k = 0; k < ws.number_reached; k++)
+				short_hops[ws.reached[k]] = (short)ws.visit_in_bfs[ws.reached[k]];
+			int_hops = null;
+		}
+		else {
+			int_hops = java.util.Arrays.copyOf(ws.visit_in_bfs, size);
+			short_hops = null;
+		}
+	}
+
+	/**
+	 * @return the hop distance of a node from the source, -1 if it was not reached
+	 */
+	public int get(int node) {
+		return short_hops != null ? short_hops[node] : int_hops[node];
+	}
+
+	/**
+	 * @return the number of nodes reached, the source included
+	 */
+	public int reached() {
+		return reached;
+	}
+
+	/**
+	 * @return the sum of the hop distances of the nodes reached
+	 */
+	public long total() {
+		return total;
+	}
+
+	/**
+	 * @return about how many bytes the distances take
+	 */
+	long bytes() {
+		return short_hops != null ? 2L * short_hops.length : 4L * int_hops.length;
+	}
+}
@@ -31,8 +31,14 @@ import java.awt.event.KeyEvent;
 import javax.swing.JFrame;
 import javax.swing.WindowConstants;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
 import vast.line2d;
 import vast.SFVoronoi;
+import vast.Tasks;
 import java.util.Hashtable;
 import java.util.Set;
 import java.util.Iterator;
@@ -49,6 +55,16 @@ public class Mabravo extends Canvas implements KeyListener {
 	VoronoiNetwork vn=null;
     Vector<Integer> all_sites_touched=null;
 	Random r = new Random();
+	// where the results of the experiments go
+	PrintStream out = System.out;
+	// number of threads the packets of a network are spread across
+	int packet_threads = 1;
+	// whether the oracle columns that need a visit of the whole network are computed
+	boolean oracle_floods = true;
+	// number of routes the network caches, 0 not to cache them
+	int route_cache = 0;
+	// whether the packets go from site to site, instead of between points of the AoI
+	boolean site_endpoints = false;
 
     public void initExperiment(Random generator, int aoi, int sites) {
         this.r = generator;
@@ -70,6 +86,23 @@ public class Mabravo extends Canvas implements KeyListener {
 				int num_experiments = Integer.parseInt(args[2]);
 				canvas.processVoronoiNetwork(num_experiments);
 			}
+            System.out.println("End -------------------------");
+		} else if (args.length >= 6 && args.length <= 10) {
+			String[] optional = { "packet_threads", "oracle", "route_cache", "endpoints" };
+			int packet_threads = args.length > 6 ? Integer.parseInt(args[6]) : 1;
+			boolean oracle_floods = args.length <= 7 || !args[7].equals("unicast");
+			int route_cache = args.length > 8 ? Integer.parseInt(args[8]) : 0;
+			boolean site_endpoints = args.length > 9 && args[9].equals("sites");
+			String names = "nodes vertices_aoi packets networks seed threads";
+			String values = args[0];
+			for (int k = 6 ; k < args.length ; k++)
+				names += " " + optional[k-6];
+			for (int k = 1 ; k < args.length ; k++)
+				values += " " + args[k];
+			System.out.println(names);
+			System.out.println(values+"\n");
+			parallelBatch(Integer.parseInt(args[0]), Integer.parseInt(args[1]), Integer.parseInt(args[2]),
+				Integer.parseInt(args[3]), Long.parseLong(args[4]), Integer.parseInt(args[5]), packet_threads, oracle_floods, route_cache, site_endpoints);
             System.out.println("End -------------------------");
 		} else if (args.length == 3) {
 			JFrame frame = new JFrame("MABRAVO");
@@ -94,11 +127,60 @@ public class Mabravo extends Canvas implements KeyListener {
 			System.out.println("\t\tnodes vertices_aoi random_seed\n");
 			System.out.println("\tbatch mode: pass me 5 parameters\n");
 			System.out.println("nodes vertices_aoi number_of_packets number_of_networks random_seed\n");
+			System.out.println("\tparallel batch mode: pass me 6 parameters\n");
+			System.out.println("nodes vertices_aoi number_of_packets number_of_networks random_seed threads [packet_threads [full|unicast [route_cache [points|sites]]]]\n");
+			System.out.println("\t\twith unicast, the oracle only finds the unicast route length, and the columns that need a visit of the whole network are left as -\n");
+			System.out.println("\t\twith a route_cache, up to that many routes are cached and the hits and misses are printed for each network\n");
+			System.out.println("\t\twith sites, the packets go from the site closest to their source to the site closest to their destination\n");
 			System.out.println("Chef's suggestion:\n");
 			System.out.println("\t\t100 10 1000\n");
         }
 	}
 
+	/**
+	 * Batch mode with the networks processed in parallel. Network i draws its random
+	 * numbers from the i-th split of the seed and writes into a buffer of its own, and
+	 * the buffers are printed in the order of the networks: the output does not
+	 * depend on the number of threads. Within each network the packets are spread
+	 * across packet_threads threads; with more than one network thread they are split
+	 * the same way but run on the threads of the networks, so no more than threads
+	 * threads run at once. Without oracle_floods the oracle columns that need a visit
+	 * of the whole network are skipped. With a route_cache, each network caches up to
+	 * that many routes. With site_endpoints, the packets go from site to site.
+	 */
+	static void parallelBatch(final int nodes, final int vertices_aoi, final int num_experiments, int numnetworks, long seed, int threads,
+			final int packet_threads, final boolean oracle_floods, final int route_cache, final boolean site_endpoints) {
+		SplittableRandom seeds = new SplittableRandom(seed);
+		Vector<Callable<String>> networks = new Vector<Callable<String>>();
+		for (int i = 0 ; i < numnetworks ; i++) {
+			final SplittableRandom stream = seeds.split();
+			networks.add(new Callable<String>() {
+				public String call() {
+					return runNetwork(new Random(stream.nextLong()), nodes, vertices_aoi, num_experiments, packet_threads, oracle_floods, route_cache, site_endpoints);
+				}
+			});
+		}
+		Vector<String> outputs = Tasks.run_all(threads, networks);
+		for (int i = 0 ; i < numnetworks ; i++)
+			System.out.print(outputs.get(i));
+	}
+
+	private static String runNetwork(Random generator, int nodes, int vertices_aoi, int num_experiments, int packet_threads, boolean oracle_floods,
+			int route_cache, boolean site_endpoints) {
+		ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+		Mabravo canvas = new Mabravo();
+		canvas.out = new PrintStream(buffer);
+		canvas.packet_threads = packet_threads;
+		canvas.oracle_floods = oracle_floods;
+		canvas.route_cache = route_cache;
+		canvas.site_endpoints = site_endpoints;
+		canvas.number_of_sites_defining_the_AoI = vertices_aoi;
+		canvas.initExperiment(generator, vertices_aoi, nodes);
+		canvas.processVoronoiNetwork(num_experiments);
+		canvas.out.flush();
+		return buffer.toString();
+	}
+
     public void keyPressed(KeyEvent e) { }
     public void keyReleased(KeyEvent e) { }
     public void keyTyped(KeyEvent e) {
@@ -130,67 +212,121 @@ public class Mabravo extends Canvas implements KeyListener {
 	}
 
 	public void processVoronoiNetwork(int num_experiments) {
-        System.out.println("\nStart of experiment ---------");
+        out.println("\nStart of experiment ---------");
 
-		System.out.println(vn.SFVoronoi_to_String(vn.globalVoronoiArea.graph));
-		vn.tagAoI(aoi);
+		out.println(vn.SFVoronoi_to_String(vn.globalVoronoiArea.graph));
+		vn.tagAoI(aoi, packet_threads);
+		if (route_cache > 0 && vn.getRouteCache() == null)
+			vn.setRouteCache(route_cache);
+		final VoronoiSnapshot snapshot = vn.snapshot();
 		source = new Point2D[num_experiments];
 		dest = new Point2D[num_experiments];
 		for (int i = 0 ; i < num_experiments ; i++) {
 			source[i] = randomPointInAoI();
 			dest[i] = randomPointInAoI();
+			if (site_endpoints) {
+				source[i] = snapshot.site(snapshot.point_to_site(source[i]));
+				dest[i] = snapshot.site(snapshot.point_to_site(dest[i]));
+			}
 		}
-		System.out.println("src, dst, total nodes, nodes in AoI, unicast route length (oracle), avg AoIcast route (oracle), avg AoIcast route (mabravo), unicasts route (mabravo):");
+		out.println("src, dst, total nodes, nodes in AoI, unicast route length (oracle), avg AoIcast route (oracle), avg AoIcast route (mabravo), unicasts route (mabravo):");
+		double[] src_x = new double[source.length];
+		double[] src_y = new double[source.length];
+		double[] dst_x = new double[source.length];
+		double[] dst_y = new double[source.length];
 		for (int i = 0 ; i < source.length ; i++) {
-			Vector<Integer> rotta = vn.computeRouting(source[i], dest[i], aoi);
-			StringBuilder sb = new StringBuilder();
-			StringBuilder sbroute = new StringBuilder();
-			sbroute.append("(");
-			int num_node_route = 0;
-			Iterator<Integer> it8 = rotta.iterator();
-			while (it8.hasNext ()) {
-				Integer l = it8.next();
-				sbroute.append(l + ",");
-                if (null!=all_sites_touched) all_sites_touched.add(l);
-				num_node_route++;
-			}
-			sbroute.append(")");
-			int source_id = vn.point_to_site(source[i]);
-			int dest_id = vn.point_to_site(dest[i]);
-			sb.append(source_id + ", " + dest_id + ", ");
+			src_x[i] = source[i].getX();
+			src_y[i] = source[i].getY();
+			dst_x[i] = dest[i].getX();
+			dst_y[i] = dest[i].getY();
+		}
+		final RouteBatch routes = snapshot.computeRoutes(src_x, src_y, dst_x, dst_y, aoi, packet_threads, vn.getRouteCache());
+		final String[] rows = new String[source.length];
+		if (packet_threads > 1 && source.length > 1) {
+			// each worker takes the next packet with its own visits, the rows are printed in order at the end
+			final AtomicInteger next_packet = new AtomicInteger();
+			Vector<Callable<Boolean>> workers = new Vector<Callable<Boolean>>();
+			for (int w = 0 ; w < packet_threads ; w++)
+				workers.add(new Callable<Boolean>() {
+					public Boolean call() {
+						VisitWorkspace visit = new VisitWorkspace();
+						VisitWorkspace aoi_visit = new VisitWorkspace();
+						for (int i = next_packet.getAndIncrement() ; i < rows.length ; i = next_packet.getAndIncrement())
+							rows[i] = processPacket(snapshot, i, routes, visit, aoi_visit);
+						return true;
+					}
+				});
+			Tasks.run_all(packet_threads, workers);
+		} else {
+			VisitWorkspace visit = new VisitWorkspace();
+			VisitWorkspace aoi_visit = new VisitWorkspace();
+			for (int i = 0 ; i < source.length ; i++)
+				rows[i] = processPacket(snapshot, i, routes, visit, aoi_visit);
+		}
+		for (int i = 0 ; i < source.length ; i++) {
+			if (null!=all_sites_touched)
+				for (int k = routes.offsets[i] ; k < routes.offsets[i+1] ; k++)
+					all_sites_touched.add(routes.path[k]);
+			out.print(rows[i]);
+		}
+		if (vn.getRouteCache() != null)
+			out.println("route cache hits " + vn.getRouteCache().hits() + ", misses " + vn.getRouteCache().misses());
+	}
 
-			vn.bfsVisit(source_id, false);
-			int visited_nodes = 0;
-			for (int j=0;j<vn.visit_in_bfs.length;j++) {
-				if (vn.visit_in_bfs[j] != -1) visited_nodes++;
-				else System.out.println("rogue node "+j);
-			}
-			sb.append(visited_nodes+", ");
-			vn.bfsVisit(source_id, true);
-			visited_nodes = 0;
-			double total_steps = 0;
-			for (int j=0;j<vn.visit_in_bfs.length;j++) if (vn.visit_in_bfs[j] != -1) {
-				visited_nodes++;
-				total_steps += vn.visit_in_bfs[j];
-			}
-			int[] visit_traditional_bfs = vn.visit_in_bfs.clone();
-			sb.append(visited_nodes+", "+ vn.visit_in_bfs[dest_id] + ", " + (total_steps / visited_nodes));
-			vn.mabravo_visit(source_id, true, aoi, source[i]);
-			for (int j=0;j<vn.visit_in_bfs.length;j++) {
-				if (visit_traditional_bfs[j]*vn.visit_in_bfs[j]<0)
-					System.err.println("\n\n!!!mabravo and the breadth first visit do not agree regarding which nodes should receive packets: node "+j+" visit "+visit_traditional_bfs[j]+" mabravo "+vn.visit_in_bfs[j]+"!!!\n\n");
-			}
-			visited_nodes = 0;
-			total_steps = 0;
-			for (int j=0;j<vn.visit_in_bfs.length;j++) if (vn.visit_in_bfs[j] != -1) {
-				visited_nodes++;
-				total_steps += vn.visit_in_bfs[j];
-			}
-			sb.append(", " + (total_steps / visited_nodes));
-			sb.append(", "+(num_node_route-1)+": "+sbroute.toString());
+	/**
+	 * Runs the oracles and MABRAVO for the i-th packet, only reading the network
+	 *
+	 * @param routes the greedy routes of the packets
+	 * @param visit scratch space of the worker
+	 * @param aoi_visit scratch space of the worker, for the breadth first visit of the AoI
+	 * @return the lines to print for the packet
+	 */
+	private String processPacket(VoronoiSnapshot snapshot, int i, RouteBatch routes, VisitWorkspace visit, VisitWorkspace aoi_visit) {
+		String nl = System.lineSeparator();
+		StringBuilder lines = new StringBuilder();
+		StringBuilder sb = new StringBuilder();
+		StringBuilder sbroute = new StringBuilder();
+		sbroute.append("(");
+		int num_node_route = 0;
+		for (int k = routes.offsets[i] ; k < routes.offsets[i+1] ; k++) {
+			sbroute.append(routes.path[k] + ",");
+			num_node_route++;
+		}
+		sbroute.append(")");
+		int source_id = snapshot.point_to_site(source[i]);
+		int dest_id = snapshot.point_to_site(dest[i]);
+		sb.append(source_id + ", " + dest_id + ", ");
 
-			System.out.println(sb.toString());
+		int size = snapshot.size();
+		if (oracle_floods) {
+			HopDistances oracle = snapshot.oracle(source_id, false, visit);
+			if (oracle.reached() < size)
+				for (int j=0;j<size;j++)
+					if (oracle.get(j) == -1) lines.append("rogue node "+j+nl);
+			sb.append(oracle.reached()+", ");
+			HopDistances aoi_oracle = snapshot.oracle(source_id, true, aoi_visit);
+			sb.append(aoi_oracle.reached()+", "+ aoi_oracle.get(dest_id) + ", " + ((double)aoi_oracle.total() / aoi_oracle.reached()));
+			snapshot.mabravo_visit(source_id, true, aoi, source[i], visit);
+			for (int j=0;j<size;j++) {
+				if (aoi_oracle.get(j)*visit.visit_in_bfs[j]<0)
+					System.err.println("\n\n!!!mabravo and the breadth first visit do not agree regarding which nodes should receive packets: node "+j+" visit "+aoi_oracle.get(j)+" mabravo "+visit.visit_in_bfs[j]+"!!!\n\n");
+			}
+		} else {
+			// only the unicast route length, searched from both ends
+			sb.append("-, -, " + snapshot.hopDistance(source_id, dest_id, true, visit, aoi_visit) + ", -");
+			snapshot.mabravo_visit(source_id, true, aoi, source[i], visit);
 		}
+		int visited_nodes = 0;
+		double total_steps = 0;
+		for (int j=0;j<size;j++) if (visit.visit_in_bfs[j] != -1) {
+			visited_nodes++;
+			total_steps += visit.visit_in_bfs[j];
+		}
+		sb.append(", " + (total_steps / visited_nodes));
+		sb.append(", "+(num_node_route-1)+": "+sbroute.toString());
+
+		lines.append(sb.toString()+nl);
+		return lines.toString();
 	}
 
 
@@ -300,12 +436,6 @@ public class Mabravo extends Canvas implements KeyListener {
 	}
 
 	public Point2D randomPointInAoI() {
-		boolean needed = true;
-		Point2D ret = null;
-		while (needed) {
-			ret = new Point2D.Double(r.nextDouble()*width, r.nextDouble()*height);
-			if (aoi.isInAoI(ret)) needed = false;
-		}
-		return ret;
+		return aoi.randomPoint(r);
 	}
 }
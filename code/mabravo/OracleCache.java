@@ -0,0 +1,80 @@
+/*
+ * MABRAVO, AoI-based Multicast Routing over Voronoi Overlays with minimal overhead
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This file is part of MABRAVO.
+ *
+ * MABRAVO is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MABRAVO is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MABRAVO.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package mabravo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * The breadth first visits of a snapshot, keyed by source node and by whether
+ * they stay within the AoI, evicting the least recently used ones when their
+ * distances take more than a given number of bytes. All the methods can be
+ * called by many threads at once.
+ *
+ * @author Michele Albano
+ */
+class OracleCache
+{
+	private final long budget;
+	private final LinkedHashMap<Long, HopDistances> visits = new LinkedHashMap<Long, HopDistances>(16, 0.75f, true);
+	private long bytes = 0;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param budget the number of bytes of distances kept at most
+	 */
+	OracleCache(long budget) {
+		this.budget = budget;
+	}
+
+	synchronized HopDistances get(int source, boolean aoi_only) {
+		HopDistances d = visits.get(key(source, aoi_only));
+		if (d == null) misses++;
+		else hits++;
+		return d;
+	}
+
+	synchronized void put(int source, boolean aoi_only, HopDistances d) {
+		if (d.bytes() > budget) return;
+		HopDistances old = visits.put(key(source, aoi_only), d);
+		if (old != null) bytes -= old.bytes();
+		bytes += d.bytes();
+		Iterator<HopDistances> eldest = visits.values().iterator();
+		while (bytes > budget) {
+			bytes -= eldest.next().bytes();
+			eldest.remove();
+		}
+	}
+
+	synchronized long hits() {
+		return hits;
+	}
+
+	synchronized long misses() {
+		return misses;
+	}
+
+	private static Long key(int source, boolean aoi_only) {
+		return 2L * source + (aoi_only ? 1 : 0);
+	}
+}
@@ -0,0 +1,64 @@
+/*
+ * MABRAVO, AoI-based Multicast Routing over Voronoi Overlays with minimal overhead
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This file is part of MABRAVO.
+ *
+ * MABRAVO is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MABRAVO is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MABRAVO.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package mabravo;
+
+/**
+ * The greedy routes of a batch of unicasts, one after the other in a single
+ * buffer: route i is path[offsets[i]] ... path[offsets[i+1]-1], starting with
+ * the site closest to its source.
+ *
+ * @author Michele Albano
+ */
+public class RouteBatch
+{
+	/** the sites of all the routes */
+	public final int[] path;
+
+	/** where each route starts in path, with one more entry for the end of the last one */
+	public final int[] offsets;
+
+	RouteBatch(int[] path, int[] offsets) {
+		this.path = path;
+		this.offsets = offsets;
+	}
+
+	/**
+	 * @return the number of routes in the batch
+	 */
+	public int size() {
+		return offsets.length - 1;
+	}
+
+	/**
+	 * @return the number of sites along route i
+	 */
+	public int length(int i) {
+		return offsets[i+1] - offsets[i];
+	}
+
+	/**
+	 * @return a copy of route i
+	 */
+	public int[] route(int i) {
+		return java.util.Arrays.copyOfRange(path, offsets[i], offsets[i+1]);
+	}
+}
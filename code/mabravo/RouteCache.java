@@ -0,0 +1,185 @@
+/*
+ * MABRAVO, AoI-based Multicast Routing over Voronoi Overlays with minimal overhead
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This file is part of MABRAVO.
+ *
+ * MABRAVO is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MABRAVO is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MABRAVO.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package mabravo;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * Bounded cache of greedy routes, keyed by the site the route starts from, the
+ * site closest to the destination and the AoI. The greedy walk steers towards the
+ * destination point, not towards its site, so each key keeps the routes to up to
+ * ROUTES_PER_KEY destination points, and a route is only reused for the very same
+ * destination point, as when packets are sent from site to site. When more than
+ * capacity routes are kept, those of the least recently used keys are evicted.
+ * The routes belong to one version of the diagram: looking up a route of another
+ * version empties the cache. All the methods can be called by many threads at once.
+ *
+ * @author Michele Albano
+ */
+public class RouteCache
+{
+	/** number of destination points whose routes are kept for each key */
+	public static final int ROUTES_PER_KEY = 4;
+
+	private final int capacity;
+	// for each key, its routes from the most to the least recently used
+	private final LinkedHashMap<Key, Entry> routes = new LinkedHashMap<Key, Entry>(16, 0.75f, true);
+	private int size = 0;
+	private int version = -1;
+	private long hits = 0;
+	private long misses = 0;
+
+	/**
+	 * @param capacity the number of routes kept at most
+	 */
+	public RouteCache(int capacity) {
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the route stored for a packet, null if there is none
+	 *
+	 * @param version the version of the diagram the packet is routed on
+	 * @param src the site the route of the packet starts from
+	 * @param dst the site closest to the destination of the packet
+	 * @param dx the destination of the packet
+	 */
+	public synchronized int[] get(int version, int src, int dst, AreaOfInterest aoi, double dx, double dy) {
+		check_version(version);
+		Key key = new Key(src, dst, aoi);
+		Entry previous = null;
+		for (Entry e = routes.get(key); e != null; previous = e, e = e.next)
+			if (e.dx == dx && e.dy == dy) {
+				// move it in front of the routes of its key
+				if (previous != null) {
+					previous.next = e.next;
+					e.next = routes.get(key);
+					routes.put(key, e);
+				}
+				hits++;
+				return e.route;
+			}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Stores the route of a packet, in front of the other routes of its key
+	 */
+	public synchronized void put(int version, int src, int dst, AreaOfInterest aoi, double dx, double dy, int[] route) {
+		check_version(version);
+		Key key = new Key(src, dst, aoi);
+		Entry first = new Entry(dx, dy, route);
+		first.next = routes.get(key);
+		routes.put(key, first);
+		size++;
+		// forget the same point, and anything past the last route kept for the key
+		int kept = 1;
+		for (Entry e = first; e.next != null; ) {
+			if (kept == ROUTES_PER_KEY || (e.next.dx == dx && e.next.dy == dy)) {
+				e.next = e.next.next;
+				size--;
+			}
+			else {
+				e = e.next;
+				kept++;
+			}
+		}
+		Iterator<Entry> eldest = routes.values().iterator();
+		while (size > capacity) {
+			for (Entry e = eldest.next(); e != null; e = e.next)
+				size--;
+			eldest.remove();
+		}
+	}
+
+	public synchronized void clear() {
+		routes.clear();
+		size = 0;
+		hits = 0;
+		misses = 0;
+	}
+
+	/**
+	 * @return the number of routes kept
+	 */
+	public synchronized int size() {
+		return size;
+	}
+
+	/**
+	 * @return the number of lookups that found a route
+	 */
+	public synchronized long hits() {
+		return hits;
+	}
+
+	/**
+	 * @return the number of lookups that did not find a route
+	 */
+	public synchronized long misses() {
+		return misses;
+	}
+
+	private void check_version(int version) {
+		if (version != this.version) {
+			routes.clear();
+			size = 0;
+			this.version = version;
+		}
+	}
+
+	// the AoI is told apart by identity, as it is not compared by value anywhere else
+	private static class Key {
+		final int src, dst;
+		final AreaOfInterest aoi;
+
+		Key(int src, int dst, AreaOfInterest aoi) {
+			this.src = src;
+			this.dst = dst;
+			this.aoi = aoi;
+		}
+
+		public boolean equals(Object o) {
+			if (!(o instanceof Key)) return false;
+			Key k = (Key)o;
+			return src == k.src && dst == k.dst && aoi == k.aoi;
+		}
+
+		public int hashCode() {
+			return (src * 31 + dst) * 31 + System.identityHashCode(aoi);
+		}
+	}
+
+	private static class Entry {
+		final double dx, dy;
+		final int[] route;
+		Entry next;
+
+		Entry(double dx, double dy, int[] route) {
+			this.dx = dx;
+			this.dy = dy;
+			this.route = route;
+		}
+	}
+}
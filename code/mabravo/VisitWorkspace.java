@@ -0,0 +1,68 @@
+/*
+ * MABRAVO, AoI-based Multicast Routing over Voronoi Overlays with minimal overhead
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This file is part of MABRAVO.
+ *
+ * MABRAVO is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MABRAVO is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MABRAVO.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package mabravo;
+
+/**
+ * Scratch space of a visit of the network, to be reused from one visit
+ * to the next: once it has grown to the size of the network, visits
+ * allocate nothing and only touch the nodes they reach.
+ *
+ * @author Michele Albano
+ */
+public class VisitWorkspace
+{
+	/** round in which each node was reached, -1 if it was not */
+	public int[] visit_in_bfs = new int[0];
+
+	/** the nodes reached, in the order they were reached */
+	public int[] reached = new int[0];
+
+	/** number of entries of reached in use */
+	public int number_reached = 0;
+
+	/**
+	 * Forgets the last visit, making room for a network of the given size
+	 */
+	void clear(int number_of_points) {
+		if (visit_in_bfs.length < number_of_points) {
+			visit_in_bfs = new int[number_of_points];
+			java.util.Arrays.fill(visit_in_bfs, -1);
+			reached = new int[number_of_points];
+		}
+		else {
+			for (int k = 0; k < number_reached; k++)
+				visit_in_bfs[reached[k]] = -1;
+		}
+		number_reached = 0;
+	}
+
+	/**
+	 * Records that a node was reached in a round
+	 */
+	void reach(int node, int round) {
+		// a node can be reached twice only if the overlay is inconsistent
+		if (number_reached == reached.length)
+			reached = java.util.Arrays.copyOf(reached, 2 * reached.length + 1);
+		visit_in_bfs[node] = round;
+		reached[number_reached++] = node;
+	}
+}
@@ -43,10 +43,20 @@ public class VoronoiArea
 
 	/** Constructor */
 	public VoronoiArea(VoronoiNetwork vn)
+	{
+		this(vn, 1);
+	}
+
+	/**
+	 * Constructor
+	 * @param vn the network of the area
+	 * @param threads number of threads the diagram is built with
+	 */
+	public VoronoiArea(VoronoiNetwork vn, int threads)
 	{
 		voronoiNetwork = vn;
 		PointtoIdmap = new Hashtable<Point2D, Integer>();
-		graph = new SFVoronoi();
+		graph = new SFVoronoi(SFVoronoi.SWEEP_HASHED, threads);
 		nextID = 0;
 		modified=true;
 	}
@@ -59,50 +69,67 @@ public class VoronoiArea
  	 */
 	public boolean vn_control(int me, line2d lato)
 	{
-		if((lato.vertexIndex[0]==-1)&&(lato.vertexIndex[1]==-1))
+		return vn_control(lato.vertexIndex[0], lato.vertexIndex[1], lato.b, lato.c);
+	}
+
+	/**
+ 	 * Verify if point me is a VN of side edge_idx of the diagram
+ 	 * @param me id of a point
+     * @param edge_idx index of a side
+ 	 * @return true if me is actually a VN w.r.t. side edge_idx
+ 	 */
+	public boolean vn_control(int me, int edge_idx)
+	{
+		return vn_control(graph.get_edge_vertex(edge_idx, 0), graph.get_edge_vertex(edge_idx, 1),
+				graph.get_edge_coefficient(edge_idx, 1), graph.get_edge_coefficient(edge_idx, 2));
+	}
+
+	private boolean vn_control(int v0, int v1, double b, double c)
+	{
+		if((v0==-1)&&(v1==-1))
 			return true;
 
-		if((lato.vertexIndex[0]!=-1)&&(lato.vertexIndex[1]!=-1))
+		if((v0!=-1)&&(v1!=-1))
 		{
-			Point2D p1 = graph.mVertices.get(lato.vertexIndex[0]);
-			Point2D p2 = graph.mVertices.get(lato.vertexIndex[1]);
-
-			Line2D.Double l = new Line2D.Double(p1,p2);
+			Line2D.Double l = new Line2D.Double(graph.get_vertex_x(v0), graph.get_vertex_y(v0),
+					graph.get_vertex_x(v1), graph.get_vertex_y(v1));
 			if(l.intersects(voronoiNetwork.diagramma))
 				return true;
 			else
 				return false;
 		}
 
-		int id = lato.vertexIndex[0]==-1?lato.vertexIndex[1]:lato.vertexIndex[0];
+		int id = v0==-1?v1:v0;
+		double x = graph.get_vertex_x(id);
+		double y = graph.get_vertex_y(id);
 
-		if((graph.mVertices.get(id)).getX()<0)
-			return lato.vertexIndex[0]==-1?false:true;
+		if(x<0)
+			return v0==-1?false:true;
 
-		if((graph.mVertices.get(id)).getX()>voronoiNetwork.diagramma.getMaxX())
-			return lato.vertexIndex[0]==-1?true:false;
+		if(x>voronoiNetwork.diagramma.getMaxX())
+			return v0==-1?true:false;
 
-		if((graph.mVertices.get(id)).getY()<0)
+		if(y<0)
 		{
-			if(lato.b==0) 
-				return lato.vertexIndex[0]==-1?true:false;
+			if(b==0) 
+				return v0==-1?true:false;
 			
-			double q = (lato.c / lato.b) - graph.mVertices.get(id).getY();
+			double q = (c / b) - y;
 
-			if(lato.vertexIndex[0]==-1)
+			if(v0==-1)
 				return q>0?true:false;
 			else 
 				return q <0?true:false;
 		}
 		
-		if (graph.mVertices.get(id).getY()>voronoiNetwork.diagramma.getMaxY())
+		if (y>voronoiNetwork.diagramma.getMaxY())
 		{
-			if(lato.b==0) 
-				return lato.vertexIndex[0]==-1?false:true;
+			if(b==0) 
+				return v0==-1?false:true;
 			
-			double q = (lato.c / lato.b) - graph.mVertices.get(id).getY();
+			double q = (c / b) - y;
 			
-			if(lato.vertexIndex[0]==-1)
+			if(v0==-1)
 				return q<0?true:false;
 			else 
 				return q>0?true:false;
@@ -146,15 +173,66 @@ public class VoronoiArea
 		return true;
 	}
 
+	/**
+	 * Inserts many points at once into a Voronoi diagram, with consecutive ids;
+	 * the diagram is built from scratch the next time it is queried
+	 *
+	 * @param points the points, those already in the graph are skipped
+	 */
+	public void insertPoints(Point2D[] points)
+	{
+		int[] ids = new int[points.length];
+		double[] xs = new double[points.length];
+		double[] ys = new double[points.length];
+		int n = 0;
+		for (int i = 0; i < points.length; i++) {
+			if (PointtoIdmap.get(points[i])!=null)
+				continue;
+			ids[n] = nextID++;
+			xs[n] = points[i].getX();
+			ys[n] = points[i].getY();
+			n++;
+		}
+		graph.insertAll(java.util.Arrays.copyOf(ids, n), java.util.Arrays.copyOf(xs, n), java.util.Arrays.copyOf(ys, n));
+		modified=true;
+	}
+
+	/**
+	 * Removes a point from a Voronoi diagram
+	 *
+	 * @param id id of the point
+	 * @return ids of the points whose neighbors changed, null if id is unknown
+	 */
+	public Vector<Integer> removePoint(int id)
+	{
+		modified=true;
+		return graph.remove(id);
+	}
+
+	/**
+	 * Moves a point of a Voronoi diagram to a new position
+	 *
+	 * @param id id of the point
+	 * @param p the new position
+	 * @return ids of the points whose neighbors changed, null if id is unknown
+	 */
+	public Vector<Integer> movePoint(int id, Point2D p)
+	{
+		modified=true;
+		return graph.move(id, p);
+	}
+
 	public static void main(String[] args) {
         int debug = 1;
+        // number of threads the diagrams are built with
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 1;
 		java.util.Random r = new java.util.Random();
         int w = 1000000;
         int h = 1000000;
 		long timeold = java.lang.System.currentTimeMillis();
 		try {
             for (int round = 950 ; round <= 1000 ; round++) {
-                SFVoronoi graph = new SFVoronoi();
+                SFVoronoi graph = new SFVoronoi(SFVoronoi.SWEEP_HASHED, threads);
 
                 for (int i = 0 ; i < 1000*round ; i++) {
                     graph.insert(i, new Point2D.Double(r.nextInt(w), r.nextInt(h)));
@@ -166,7 +244,7 @@ public class VoronoiArea
                         System.out.println("site: (" + i + ") point: [" + graph.get(i).getX() + ", " + graph.get(i).getY() + ")\n");
                 }
                 for (int i = 0 ; i < graph.mVertices.size() ; i++) {
-                    Point2D p = graph.mVertices.elementAt(i);
+                    Point2D p = graph.mVertices.get(i);
                     if (debug > 2)
                         System.out.println("vertex: " + i + " (" + p.getX() + ", " + p.getY() + ")\n");
                 }
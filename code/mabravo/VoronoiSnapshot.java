@@ -0,0 +1,719 @@
+/*
+ * MABRAVO, AoI-based Multicast Routing over Voronoi Overlays with minimal overhead
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This file is part of MABRAVO.
+ *
+ * MABRAVO is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * MABRAVO is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with MABRAVO.  If not, see <https://www.gnu.org/licenses/>.
+ *
+ */
+
+package mabravo;
+
+import java.awt.geom.Point2D;
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import vast.SFVoronoi;
+import vast.SiteGrid;
+import vast.Tasks;
+
+/**
+ * Frozen copy of a Voronoi network: the sites, the borders and vertices of
+ * the diagram, the neighbors of each site and the sites tagged as part of the AoI.
+ * Nothing changes after construction, so any number of threads can route and
+ * multicast over the same snapshot, each one writing only into its own results.
+ *
+ * @author Michele Albano
+ */
+public class VoronoiSnapshot
+{
+	private final int global_debug;
+	private final int version;
+
+	// coordinates of the sites, by id
+	private final int number_of_sites;
+	private final double[] site_x;
+	private final double[] site_y;
+	private final SiteGrid grid;
+
+	// the borders: the two sites they bisect, their vertices (-1 if unbounded) and the clipped segment
+	private final int[] edge_sites;
+	private final int[] edge_vertices;
+	private final double[] edge_segments;
+
+	// the vertices and the three borders ending in each of them, -1 where not known
+	private final double[] vertex_x;
+	private final double[] vertex_y;
+	private final int[] vertex_edges;
+
+	// borders of each site that pass vn_control, in the order of the diagram:
+	// those of site i are incident[incident_offsets[i]] ... incident[incident_offsets[i+1]-1]
+	private final int[] incident_offsets;
+	private final int[] incident;
+
+	// neighbors of each site without repetitions, in compressed sparse rows,
+	// with borders[k] the border between site i and neighbours[k]
+	private final int[] offsets;
+	private final int[] neighbours;
+	private final int[] borders;
+
+	// sites whose cell touches the AoI, null if the network was not tagged
+	private final boolean[] siteInAoI;
+
+	// the third site around the vertex at each end of each border, when it does not depend on which
+	// of the two sites of the border is asking: -1 for unbounded ends, NO_THIRD_SITE where it does
+	private static final int NO_THIRD_SITE = -2;
+	private final int[] edge_third;
+
+	// the AoI the sites were tagged with, and for it the vertices inside it (bit v)
+	// and the borders crossing it (bit e, only for the borders with no vertex inside it)
+	private final AreaOfInterest taggedAoI;
+	private final long[] vertex_in_aoi;
+	private final long[] edge_crosses_aoi;
+
+	// bytes of hop distances the breadth first visits are cached in
+	private static final long ORACLE_CACHE_BYTES = 32L << 20;
+
+	// the breadth first visits run so far, which depend only on what the snapshot holds
+	private final OracleCache oracles = new OracleCache(ORACLE_CACHE_BYTES);
+
+	/**
+	 * Copies the current state of a Voronoi area
+	 *
+	 * @param area the Voronoi area of the network
+	 * @param number_of_points number of sites the network was created with
+	 * @param siteInAoI AoI tags of the sites, or null
+	 * @param aoi the AoI the sites were tagged with, or null
+	 * @param global_debug verbosity of the queries
+	 */
+	VoronoiSnapshot(VoronoiArea area, int number_of_points, boolean[] siteInAoI, AreaOfInterest aoi, int global_debug)
+	{
+		this.global_debug = global_debug;
+		SFVoronoi graph = area.graph;
+		version = graph.get_version();
+
+		int nedges = graph.get_edge_count();
+		int nsites = number_of_points;
+		for (int i = 0; i < nedges; i++)
+			nsites = Math.max(nsites, Math.max(graph.get_edge_site(i, 0), graph.get_edge_site(i, 1))+1);
+		int nstored = graph.size();
+		int[] ids = new int[nstored];
+		double[] xs = new double[nstored];
+		double[] ys = new double[nstored];
+		for (int k = 0; k < nstored; k++) {
+			ids[k] = graph.get_site_id(k);
+			xs[k] = graph.get_site_x(k);
+			ys[k] = graph.get_site_y(k);
+			nsites = Math.max(nsites, ids[k]+1);
+		}
+		number_of_sites = nsites;
+
+		site_x = new double[nsites];
+		site_y = new double[nsites];
+		for (int k = 0; k < nstored; k++) {
+			site_x[ids[k]] = xs[k];
+			site_y[ids[k]] = ys[k];
+		}
+		grid = new SiteGrid(ids, xs, ys, nstored);
+
+		edge_sites = new int[2*nedges];
+		edge_vertices = new int[2*nedges];
+		edge_segments = new double[4*nedges];
+		for (int i = 0; i < nedges; i++) {
+			for (int j = 0; j < 2; j++) {
+				edge_sites[2*i+j] = graph.get_edge_site(i, j);
+				edge_vertices[2*i+j] = graph.get_edge_vertex(i, j);
+			}
+			for (int k = 0; k < 4; k++)
+				edge_segments[4*i+k] = graph.get_edge_point(i, k);
+		}
+
+		int nvertices = graph.get_vertex_count();
+		vertex_x = new double[nvertices];
+		vertex_y = new double[nvertices];
+		vertex_edges = new int[3*nvertices];
+		for (int v = 0; v < nvertices; v++) {
+			vertex_x[v] = graph.get_vertex_x(v);
+			vertex_y[v] = graph.get_vertex_y(v);
+			for (int k = 0; k < 3; k++)
+				vertex_edges[3*v+k] = graph.get_vertex_edge(v, k);
+		}
+
+		// count the borders of each site, then place them
+		boolean[] usable = new boolean[nedges];
+		incident_offsets = new int[nsites+1];
+		for (int i = 0; i < nedges; i++) {
+			if (!area.vn_control(edge_sites[2*i], i)) continue;
+			usable[i] = true;
+			incident_offsets[edge_sites[2*i]+1]++;
+			incident_offsets[edge_sites[2*i+1]+1]++;
+		}
+		for (int i = 0; i < nsites; i++)
+			incident_offsets[i+1] += incident_offsets[i];
+		incident = new int[incident_offsets[nsites]];
+		int[] fill = new int[nsites];
+		for (int i = 0; i < nedges; i++)
+			if (usable[i])
+				for (int j = 0; j < 2; j++) {
+					int site = edge_sites[2*i+j];
+					incident[incident_offsets[site] + fill[site]++] = i;
+				}
+
+		// two sites could share more than one border in degenerate diagrams
+		offsets = new int[nsites+1];
+		int[] rows = new int[incident.length];
+		int w = 0;
+		for (int i = 0; i < nsites; i++) {
+			offsets[i] = w;
+			for (int k = incident_offsets[i]; k < incident_offsets[i+1]; k++) {
+				int other = other_site(incident[k], i);
+				boolean seen = false;
+				for (int m = offsets[i]; m < w && !seen; m++)
+					seen = rows[m] == other;
+				if (!seen) rows[w++] = other;
+			}
+		}
+		offsets[nsites] = w;
+		neighbours = java.util.Arrays.copyOf(rows, w);
+		borders = new int[w];
+		for (int i = 0; i < nsites; i++)
+			for (int k = offsets[i]; k < offsets[i+1]; k++)
+				borders[k] = graph.get_edge(i, neighbours[k]);
+
+		this.siteInAoI = siteInAoI == null ? null : siteInAoI.clone();
+
+		edge_third = new int[2*nedges];
+		for (int i = 0; i < nedges; i++)
+			for (int end = 0; end < 2; end++) {
+				int v = edge_vertices[2*i+end];
+				if (v == -1) {
+					edge_third[2*i+end] = -1;
+					continue;
+				}
+				int sk = third_site(edge_sites[2*i], edge_sites[2*i+1], v);
+				edge_third[2*i+end] = sk == third_site(edge_sites[2*i+1], edge_sites[2*i], v) ? sk : NO_THIRD_SITE;
+			}
+
+		// the tables only answer for the AoI they were made with
+		taggedAoI = siteInAoI == null ? null : aoi;
+		if (taggedAoI != null) {
+			vertex_in_aoi = new long[(nvertices+63)/64];
+			for (int v = 0; v < nvertices; v++)
+				if (aoi.isInAoI(vertex_x[v], vertex_y[v]))
+					vertex_in_aoi[v>>>6] |= 1L << v;
+			edge_crosses_aoi = new long[(nedges+63)/64];
+			for (int i = 0; i < nedges; i++) {
+				int v1 = edge_vertices[2*i];
+				int v2 = edge_vertices[2*i+1];
+				if ((v1 != -1 && has_bit(vertex_in_aoi, v1)) || (v2 != -1 && has_bit(vertex_in_aoi, v2))) continue;
+				if (aoi.intersect(edge_segments[4*i], edge_segments[4*i+1], edge_segments[4*i+2], edge_segments[4*i+3], false))
+					edge_crosses_aoi[i>>>6] |= 1L << i;
+			}
+		}
+		else {
+			vertex_in_aoi = null;
+			edge_crosses_aoi = null;
+		}
+	}
+
+	private static boolean has_bit(long[] bits, int i) {
+		return (bits[i>>>6] & (1L << i)) != 0;
+	}
+
+	/**
+	 * @return the version of the diagram the snapshot was taken from
+	 */
+	public int get_version() {
+		return version;
+	}
+
+	/**
+	 * @return the number of entries of the per-site results, larger than the largest site id
+	 */
+	public int size() {
+		return number_of_sites;
+	}
+
+	/**
+	 * @return true if the sites were tagged with an AoI
+	 */
+	public boolean isTagged() {
+		return siteInAoI != null;
+	}
+
+	public boolean isInAoI(int ID) {
+		return siteInAoI != null && siteInAoI[ID];
+	}
+
+	public Point2D site(int ID) {
+		return new Point2D.Double(site_x[ID], site_y[ID]);
+	}
+
+	public int[] neighbors(int ID) {
+		if (ID < 0 || ID >= number_of_sites) return new int[0];
+		return java.util.Arrays.copyOfRange(neighbours, offsets[ID], offsets[ID+1]);
+	}
+
+	public int point_to_site(Point2D coord) {
+		return grid.closest(coord.getX(), coord.getY());
+	}
+
+	private int other_site(int edge_idx, int site) {
+		return edge_sites[2*edge_idx] == site ? edge_sites[2*edge_idx+1] : edge_sites[2*edge_idx];
+	}
+
+	// only for borders with no vertex in the AoI when the tables are used
+	private boolean intersect(AreaOfInterest aoi, int edge_idx) {
+		if (aoi == taggedAoI) return has_bit(edge_crosses_aoi, edge_idx);
+		return aoi.intersect(edge_segments[4*edge_idx], edge_segments[4*edge_idx+1],
+			edge_segments[4*edge_idx+2], edge_segments[4*edge_idx+3], false);
+	}
+
+	private boolean vertexInAoI(AreaOfInterest aoi, int vertex_index) {
+		if (aoi == taggedAoI) return has_bit(vertex_in_aoi, vertex_index);
+		return aoi.isInAoI(vertex_x[vertex_index], vertex_y[vertex_index]);
+	}
+
+	// the third site around a vertex as find_neighbor finds it, NO_THIRD_SITE where find_neighbor would complain
+	private int third_site(int si, int sj, int vertex_index) {
+		int sk = -1;
+		for (int k = 0; k < 3; k++) {
+			int edge_idx = vertex_edges[3*vertex_index+k];
+			if (edge_idx == -1) continue;
+			if (edge_sites[2*edge_idx] == si || edge_sites[2*edge_idx+1] == si) {
+				int candidate = other_site(edge_idx, si);
+				if (candidate != sj) {
+					if (sk != -1) return NO_THIRD_SITE;
+					sk = candidate;
+				}
+			}
+		}
+		for (int k = 0; k < 3; k++) {
+			int edge_idx = vertex_edges[3*vertex_index+k];
+			if (edge_idx == -1) continue;
+			if (edge_sites[2*edge_idx] == sj || edge_sites[2*edge_idx+1] == sj) {
+				int candidate = other_site(edge_idx, sj);
+				if (candidate != si && candidate != sk) return NO_THIRD_SITE;
+			}
+		}
+		return sk == -1 ? NO_THIRD_SITE : sk;
+	}
+
+	private int find_neighbor(int si, int sj, int vertex_index) {
+		if (global_debug > 6)
+			System.out.println("si, sj, vertex_index: "+ si + ", " + sj + ", " + vertex_index);
+		int sk = -1;
+		// the edges ending in the vertex are the borders between si, sj and sk
+		for (int k = 0; k < 3; k++) {
+			int edge_idx = vertex_edges[3*vertex_index+k];
+			if (edge_idx == -1) continue;
+			if (edge_sites[2*edge_idx] == si || edge_sites[2*edge_idx+1] == si) {
+				int candidate = other_site(edge_idx, si);
+				if (candidate != sj) {
+					if (sk != -1) System.err.println("\n\n!!!incongruence regarding the borders of type 1: candidate = "+ candidate+ " sk = "+sk+", sj = "+sj+", si ="+si+"!!!\n\n");
+					sk = candidate;
+				}
+			}
+		}
+		for (int k = 0; k < 3; k++) {
+			int edge_idx = vertex_edges[3*vertex_index+k];
+			if (edge_idx == -1) continue;
+			if (edge_sites[2*edge_idx] == sj || edge_sites[2*edge_idx+1] == sj) {
+				int candidate = other_site(edge_idx, sj);
+				if (candidate != si && candidate != sk) System.err.println("\n\n!!!incongruence regarding the borders of type 2!!!:"+ candidate + " is not "+ (sk == -1 ? null : sk)+ "\n\n");
+			}
+		}
+		if (sk == -1) System.err.println("\n\n\n!!!I cannot a border!!!\n\n");
+		if (global_debug > 6)
+			System.out.println("I will return sk: "+ (sk == -1 ? null : sk));
+
+		return sk;
+	}
+
+	/**
+	 * Tells if sk, the third site around a vertex of the border between si and sj,
+	 * would be a better relay than si for sj
+	 */
+	private boolean better_relay(double rx, double ry, int si, int sj, int sk) {
+		double dj = dist2(rx, ry, site_x[sj], site_y[sj]);
+		double dk = dist2(rx, ry, site_x[sk], site_y[sk]);
+		if (!(dk < dj)) return false;
+		// large cos2(angle) means that the abs(angle) is close to 0
+		double cos_k = cos2(rx, ry, site_x[sj], site_y[sj], site_x[sk], site_y[sk]);
+		double cos_i = cos2(rx, ry, site_x[sj], site_y[sj], site_x[si], site_y[si]);
+		return cos_k > cos_i || (cos_k == cos_i && sk < si);
+	}
+
+	public boolean mabravo_decision(Point2D root, int si, int sj, boolean aoi_only, AreaOfInterest aoi)
+	{
+		int border_idx = -1;
+		for (int k = offsets[si]; k < offsets[si+1] && border_idx == -1; k++)
+			if (neighbours[k] == sj) border_idx = borders[k];
+		return mabravo_decision(root, si, sj, border_idx, aoi);
+	}
+
+	private boolean mabravo_decision(Point2D root, int si, int sj, int border_idx, AreaOfInterest aoi)
+	{
+		if (global_debug > 5)
+			System.out.println("I am node " + si + " considering node "+ sj);
+		double rx = root.getX();
+		double ry = root.getY();
+		if (dist2(rx, ry, site_x[si], site_y[si]) > dist2(rx, ry, site_x[sj], site_y[sj])) {
+
+			if (global_debug > 5)
+				System.out.println("node rejected for the distance");
+			return false;
+		}
+
+		if (border_idx == -1) System.err.println("\n\n\n!!!I cannot find a border!!!\n\n");
+		int v1 = edge_vertices[2*border_idx];
+		int v2 = edge_vertices[2*border_idx+1];
+		boolean v1inAoI = -1 != v1 && vertexInAoI(aoi, v1);
+		boolean v2inAoI = -1 != v2 && vertexInAoI(aoi, v2);
+		if (!v1inAoI && !v2inAoI) {
+			if (intersect(aoi, border_idx)) {
+				if (global_debug > 5)
+					System.out.println("sending the packet, the node has a border crossing the AoI");
+				return true;
+			}
+			if (global_debug > 5)
+				System.out.println("rejected, node totally out");
+			return false;
+		}
+		for (int end = 0; end < 2; end++) {
+			if (!(end == 0 ? v1inAoI : v2inAoI)) continue;
+			int sk = edge_third[2*border_idx+end];
+			if (sk == NO_THIRD_SITE || global_debug > 6)
+				sk = find_neighbor(si, sj, edge_vertices[2*border_idx+end]);
+			if (sk != -1 && better_relay(rx, ry, si, sj, sk)) {
+				if (global_debug > 5)
+					System.out.println("rejected, node "+sk+" would be better");
+				return false;
+			}
+		}
+		if (global_debug > 5)
+			System.out.println("sending the packet, node is good");
+		return true;
+	}
+
+	/**
+	 * Multicasts a packet from a node, expanding only the nodes that received it
+	 *
+	 * @param ws where the rounds the nodes received the packet in are left
+	 * @return false if the sites were not tagged with an AoI and aoi_only is set
+	 */
+	public boolean mabravo_visit(int first_node, boolean aoi_only, AreaOfInterest aoi, Point2D root, VisitWorkspace ws) {
+		if (aoi_only && siteInAoI == null) return false;
+		ws.clear(number_of_sites);
+		ws.reach(first_node, 0);
+		int head = 0;
+		int round = 0;
+		while (head < ws.number_reached) {
+			// the nodes reached in the last round, relaying in the order of their ids
+			int round_end = ws.number_reached;
+			java.util.Arrays.sort(ws.reached, head, round_end);
+			for (; head < round_end; head++) {
+				int i = ws.reached[head];
+				// a node reached again later relays in the later round only
+				if (ws.visit_in_bfs[i] != round) continue;
+				for (int k = offsets[i]; k < offsets[i+1]; k++) {
+					int site_id = neighbours[k];
+					if (mabravo_decision(root, i, site_id, borders[k], aoi)) {
+						if (ws.visit_in_bfs[site_id] != -1)
+							System.err.println("\n\n\n!!!node received a packet from 2 nodes!!!\n\n");
+						if (ws.visit_in_bfs[site_id] != round+1) ws.reach(site_id, round+1);
+					}
+				}
+			}
+			round++;
+		}
+		return true;
+	}
+
+	/**
+	 * Breadth first visit from a node, through the nodes in the AoI only if aoi_only is set
+	 *
+	 * @param ws where the hop distances of the nodes from first_node are left
+	 * @return false if the sites were not tagged with an AoI and aoi_only is set
+	 */
+	public boolean bfsVisit(int first_node, boolean aoi_only, VisitWorkspace ws) {
+		if (aoi_only && siteInAoI == null) return false;
+		ws.clear(number_of_sites);
+		// every node enters the queue once, when it is first reached
+		ws.reach(first_node, 0);
+		for (int head = 0; head < ws.number_reached; head++) {
+			int i = ws.reached[head];
+			for (int k = offsets[i]; k < offsets[i+1]; k++) {
+				int site_id = neighbours[k];
+				if (-1 == ws.visit_in_bfs[site_id])
+					if (!aoi_only || siteInAoI[site_id])
+						ws.reach(site_id, ws.visit_in_bfs[i]+1);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Hop distance from a node to another, the one bfsVisit from the first would give to the
+	 * second, found by a breadth first visit from each end that stops where the two meet.
+	 * Each round extends by one hop the visit with the fewer nodes waiting to be expanded.
+	 *
+	 * @param fwd scratch space of the visit from first_node
+	 * @param bwd scratch space of the visit from last_node
+	 * @return the number of hops, -1 if last_node cannot be reached or aoi_only is set on an untagged network
+	 */
+	public int hopDistance(int first_node, int last_node, boolean aoi_only, VisitWorkspace fwd, VisitWorkspace bwd) {
+		if (aoi_only && siteInAoI == null) return -1;
+		if (first_node == last_node) return 0;
+		// a visit through the AoI only enters nodes of the AoI, past the first one
+		if (aoi_only && !siteInAoI[last_node]) return -1;
+		fwd.clear(number_of_sites);
+		bwd.clear(number_of_sites);
+		fwd.reach(first_node, 0);
+		bwd.reach(last_node, 0);
+		int fwd_head = 0;
+		int bwd_head = 0;
+		while (fwd_head < fwd.number_reached && bwd_head < bwd.number_reached) {
+			boolean forward = fwd.number_reached - fwd_head <= bwd.number_reached - bwd_head;
+			VisitWorkspace side = forward ? fwd : bwd;
+			VisitWorkspace other = forward ? bwd : fwd;
+			int head = forward ? fwd_head : bwd_head;
+			int round_end = side.number_reached;
+			// the shortest path through any node of this round, all the shorter ones were ruled out before
+			int best = -1;
+			for (; head < round_end; head++) {
+				int i = side.reached[head];
+				for (int k = offsets[i]; k < offsets[i+1]; k++) {
+					int site_id = neighbours[k];
+					if (aoi_only && !siteInAoI[site_id] && site_id != first_node) continue;
+					if (other.visit_in_bfs[site_id] != -1) {
+						int hops = side.visit_in_bfs[i] + 1 + other.visit_in_bfs[site_id];
+						if (best == -1 || hops < best) best = hops;
+					}
+					if (side.visit_in_bfs[site_id] == -1)
+						side.reach(site_id, side.visit_in_bfs[i]+1);
+				}
+			}
+			if (best != -1) return best;
+			if (forward) fwd_head = head;
+			else bwd_head = head;
+		}
+		return -1;
+	}
+
+	/**
+	 * Hop distances from a node as bfsVisit finds them, reusing those of an
+	 * earlier visit from the same node when they are still cached
+	 *
+	 * @param ws scratch space for the visit, if it has to be run
+	 * @return null if the sites were not tagged with an AoI and aoi_only is set
+	 */
+	public HopDistances oracle(int first_node, boolean aoi_only, VisitWorkspace ws) {
+		if (aoi_only && siteInAoI == null) return null;
+		HopDistances d = oracles.get(first_node, aoi_only);
+		if (d == null) {
+			bfsVisit(first_node, aoi_only, ws);
+			d = new HopDistances(ws, number_of_sites);
+			oracles.put(first_node, aoi_only, d);
+		}
+		return d;
+	}
+
+	private int makeRoutingStep(double dx, double dy, int ID, AreaOfInterest aoi)
+	{
+		double dist_old = dist2(dx, dy, site_x[ID], site_y[ID]);
+		boolean at_least_one_closer = false;
+		// among the neighbors that are not farther and have a vertex in the AoI, the best aligned
+		int best_site = -1;
+		double best_cos = -1;
+
+		for (int k = incident_offsets[ID]; k < incident_offsets[ID+1]; k++) {
+			int edge_idx = incident[k];
+			int adding = other_site(edge_idx, ID);
+			double dist = dist2(dx, dy, site_x[adding], site_y[adding]);
+			if (global_debug > 2)
+				System.out.println("distance^2 of "+adding+" is "+dist+ " vs " + dist_old);
+			if (dist < dist_old) at_least_one_closer = true;
+			int v1 = edge_vertices[2*edge_idx];
+			int v2 = edge_vertices[2*edge_idx+1];
+			boolean v1ok = v1 == -1 || vertexInAoI(aoi, v1);
+			boolean v2ok = v2 == -1 || vertexInAoI(aoi, v2);
+
+			if (global_debug > 2)
+				System.out.println("vertices: ("+v1+", "+v1ok+ ") ("+v2+", "+ v2ok + ")");
+			if (dist <= dist_old &&(v1ok||v2ok)) {
+				double cos = cos2(dx, dy, site_x[ID], site_y[ID], site_x[adding], site_y[adding]);
+				if (cos > best_cos || -1 == best_site || (cos == best_cos && adding < best_site)) {
+					best_cos = cos;
+					best_site = adding;
+				}
+			}
+		}
+		if (!at_least_one_closer) return -1;
+		if (best_site != -1) return best_site;
+		for (int k = incident_offsets[ID]; k < incident_offsets[ID+1]; k++) {
+			int edge_idx = incident[k];
+			int adding = other_site(edge_idx, ID);
+			if (dist2(dx, dy, site_x[adding], site_y[adding]) < dist_old)
+				if (intersect(aoi, edge_idx))
+					return adding;
+		}
+		// if I get here, there is a very bad bug
+		System.err.println("\n\n!!!super bug!!!\n\n");
+		return -1;
+	}
+
+	/**
+	 * Greedy route from the site closest to src towards dst
+	 *
+	 * @return the sites along the route, starting with the one closest to src
+	 */
+	public int[] computeRouting(Point2D src, Point2D dst, AreaOfInterest aoi) {
+		return computeRouting(src, dst, aoi, null);
+	}
+
+	/**
+	 * Greedy route from the site closest to src towards dst, looked up in a cache first
+	 *
+	 * @param cache where routes are looked up and stored, or null
+	 * @return the sites along the route, starting with the one closest to src
+	 */
+	public int[] computeRouting(Point2D src, Point2D dst, AreaOfInterest aoi, RouteCache cache) {
+		RouteBuffer buffer = new RouteBuffer();
+		route(src.getX(), src.getY(), dst.getX(), dst.getY(), aoi, buffer, cache);
+		return java.util.Arrays.copyOf(buffer.path, buffer.length);
+	}
+
+	/**
+	 * Greedy routes of a batch of unicasts, the i-th from (src_x[i], src_y[i]) towards
+	 * (dst_x[i], dst_y[i]). The batch is split into one block of packets per thread,
+	 * each routed into a buffer of its own, and the buffers are joined in order.
+	 *
+	 * @param threads number of threads to route with, 1 to route in the calling thread;
+	 * called from a task of a pool, the blocks run on that pool
+	 * @return the routes, in the order of the packets
+	 */
+	public RouteBatch computeRoutes(double[] src_x, double[] src_y, double[] dst_x, double[] dst_y,
+			AreaOfInterest aoi, int threads) {
+		return computeRoutes(src_x, src_y, dst_x, dst_y, aoi, threads, null);
+	}
+
+	/**
+	 * Greedy routes of a batch of unicasts, each looked up in a cache first
+	 *
+	 * @param cache where routes are looked up and stored, or null
+	 */
+	public RouteBatch computeRoutes(final double[] src_x, final double[] src_y, final double[] dst_x, final double[] dst_y,
+			final AreaOfInterest aoi, int threads, final RouteCache cache) {
+		final int n = src_x.length;
+		final int[] offsets = new int[n+1];
+		int blocks = Math.max(1, Math.min(threads, n));
+		final int[] starts = new int[blocks+1];
+		for (int b = 0; b <= blocks; b++)
+			starts[b] = (int)((long)n * b / blocks);
+		Vector<Callable<RouteBuffer>> parts = new Vector<Callable<RouteBuffer>>();
+		for (int b = 0; b < blocks; b++) {
+			final int block = b;
+			parts.add(new Callable<RouteBuffer>() {
+				public RouteBuffer call() {
+					return route_block(src_x, src_y, dst_x, dst_y, aoi, cache, starts[block], starts[block+1], offsets);
+				}
+			});
+		}
+		Vector<RouteBuffer> buffers = Tasks.run_all(blocks, parts);
+
+		// offsets[i+1] holds the length of route i so far, and each buffer starts where the previous one ends
+		int total = 0;
+		for (int b = 0; b < blocks; b++)
+			total += buffers.get(b).length;
+		int[] path = new int[total];
+		int at = 0;
+		for (int b = 0; b < blocks; b++) {
+			System.arraycopy(buffers.get(b).path, 0, path, at, buffers.get(b).length);
+			at += buffers.get(b).length;
+		}
+		for (int i = 0; i < n; i++)
+			offsets[i+1] += offsets[i];
+		return new RouteBatch(path, offsets);
+	}
+
+	// routes the packets from first to last-1, leaving the length of route i in lengths[i+1]
+	private RouteBuffer route_block(double[] src_x, double[] src_y, double[] dst_x, double[] dst_y,
+			AreaOfInterest aoi, RouteCache cache, int first, int last, int[] lengths) {
+		RouteBuffer buffer = new RouteBuffer();
+		for (int i = first; i < last; i++) {
+			int start = buffer.length;
+			route(src_x[i], src_y[i], dst_x[i], dst_y[i], aoi, buffer, cache);
+			lengths[i+1] = buffer.length - start;
+		}
+		return buffer;
+	}
+
+	// appends the greedy route from the site closest to (sx, sy) towards (dx, dy) to a buffer
+	private void route(double sx, double sy, double dx, double dy, AreaOfInterest aoi, RouteBuffer buffer, RouteCache cache) {
+		int current = grid.closest(sx, sy);
+		if (cache == null || current == -1) {
+			while (current != -1) {
+				buffer.add(current);
+				current = makeRoutingStep(dx, dy, current, aoi);
+			}
+			return;
+		}
+		// the route only depends on the site it starts from, on the destination and on the AoI
+		int dst = grid.closest(dx, dy);
+		int[] cached = cache.get(version, current, dst, aoi, dx, dy);
+		if (cached != null) {
+			for (int k = 0; k < cached.length; k++)
+				buffer.add(cached[k]);
+			return;
+		}
+		int start = buffer.length;
+		while (current != -1) {
+			buffer.add(current);
+			current = makeRoutingStep(dx, dy, current, aoi);
+		}
+		cache.put(version, buffer.path[start], dst, aoi, dx, dy, java.util.Arrays.copyOfRange(buffer.path, start, buffer.length));
+	}
+
+	// growing array of sites, written by one thread only
+	private static class RouteBuffer {
+		int[] path = new int[8];
+		int length = 0;
+
+		void add(int site) {
+			if (length == path.length) path = java.util.Arrays.copyOf(path, 2*length);
+			path[length++] = site;
+		}
+	}
+
+	static double cos2(double dx, double dy, double cx, double cy, double sx, double sy) {
+		double v1x = dx-cx;
+		double v1y = dy-cy;
+		double v2x = sx-cx;
+		double v2y = sy-cy;
+		double cos = v1x * v2x + v1y * v2y;
+		if (cos < 0) cos = - cos * cos;
+		else cos = cos * cos;
+		cos = cos / dist2(cx, cy, dx, dy);
+		cos = cos / dist2(cx, cy, sx, sy);
+		return cos;
+	}
+
+	// the same as Point2D.distanceSq
+	static double dist2(double x1, double y1, double x2, double y2) {
+		double px = x2-x1;
+		double py = y2-y1;
+		return px * px + py * py;
+	}
+}
@@ -0,0 +1,135 @@
+/*
+ * VAST, a scalable peer-to-peer network for virtual environments
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package vast;
+
+/**
+ * Open addressing hash table from an unordered pair of site ids
+ * to the index of the edge bisecting them.
+ */
+class EdgeTable
+{
+    private static final long   EMPTY = -1L;
+
+    private long[]  keys;
+    private int[]   values;
+    private int     size;
+    private int     mask;
+
+    public EdgeTable(int expected) {
+        int capacity = 16;
+        while (capacity < 2 * expected)
+            capacity <<= 1;
+        keys   = new long[capacity];
+        values = new int[capacity];
+        java.util.Arrays.fill(keys, EMPTY);
+        mask = capacity - 1;
+        size = 0;
+    }
+
+    // the key of a pair of non negative ids, the same whatever their order
+    public static long key(int id1, int id2) {
+        int lo = Math.min(id1, id2);
+        int hi = Math.max(id1, id2);
+        return ((long)lo << 32) | (hi & 0xffffffffL);
+    }
+
+    /**
+     * Returns the edge between two sites, -1 if there is none
+     */
+    public int get(int id1, int id2) {
+        if (id1 < 0 || id2 < 0)
+            return -1;
+        long k = key(id1, id2);
+        for (int i = slot(k); ; i = (i + 1) & mask) {
+            if (keys[i] == k)
+                return values[i];
+            if (keys[i] == EMPTY)
+                return -1;
+        }
+    }
+
+    public void put(int id1, int id2, int edge_idx) {
+        if (2 * (size + 1) > keys.length)
+            grow();
+        long k = key(id1, id2);
+        int i = slot(k);
+        while (keys[i] != EMPTY && keys[i] != k)
+            i = (i + 1) & mask;
+        if (keys[i] == EMPTY)
+            size++;
+        keys[i] = k;
+        values[i] = edge_idx;
+    }
+
+    public void remove(int id1, int id2) {
+        if (id1 < 0 || id2 < 0)
+            return;
+        long k = key(id1, id2);
+        int i = slot(k);
+        while (keys[i] != k) {
+            if (keys[i] == EMPTY)
+                return;
+            i = (i + 1) & mask;
+        }
+        // shift back the entries that probed past the freed slot
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == EMPTY)
+                break;
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                values[i] = values[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+    }
+
+    public void clear() {
+        java.util.Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    private int slot(long k) {
+        long h = k * 0x9E3779B97F4A7C15L;
+        return (int)(h >>> 32) & mask;
+    }
+
+    private void grow() {
+        long[] old_keys = keys;
+        int[] old_values = values;
+        keys   = new long[2 * old_keys.length];
+        values = new int[2 * old_keys.length];
+        java.util.Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        size = 0;
+        for (int i = 0; i < old_keys.length; i++)
+            if (old_keys[i] != EMPTY)
+                put((int)(old_keys[i] >>> 32), (int)old_keys[i], old_values[i]);
+    }
+}
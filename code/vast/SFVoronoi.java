@@ -40,11 +40,17 @@ package vast;
 
 import java.awt.geom.Point2D;
 import java.util.Vector;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.AbstractList;
+import java.util.RandomAccess;
 import java.util.Hashtable;
 import java.util.Iterator;
-import java.util.Comparator;
 import java.util.Enumeration;
+import java.util.Map;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 class Site
 {
@@ -79,56 +85,152 @@ class Halfedge
     public Site        vertex;
     public double      ystar;
     public Halfedge    PQnext;
+
+    // used by the heap and tree sweep only
+    public int         PQindex = -1;                        // position in the heap, -1 if not queued
+    public long        PQseq;                               // breaks ties in the order of insertion
+    public Halfedge    ELparent, ELlchild, ELrchild;        // beach line tree
+    public int         ELpriority;
 };
 
 public class SFVoronoi {
 
+    // the sweep keeps its events and its beach line in bucket hash tables (the original one)...
+    public static final int SWEEP_HASHED = 0;
+    // ...or in a binary heap and a balanced tree, which do not slow down on clustered sites
+    public static final int SWEEP_TREES  = 1;
+
     public SFVoronoi () {
+        this (SWEEP_HASHED);
+    }
+
+    public SFVoronoi (int sweep) {
+        this (sweep, 1);
+    }
+
+    // with more than one thread, large diagrams are built in vertical strips at the same time
+    public SFVoronoi (int sweep, int threads) {
         DELETED = new Edge ();
         DELETED.a = DELETED.b = DELETED.c = (-2);
         
         le = 0;
         re = 1;
+
+        this.sweep_kind = sweep;
+        this.threads = threads;
     }
 
-    private boolean     invalidated = false;
+    private final int   sweep_kind;
+    private final int   threads;
+
+    // below this many sites per thread a single sweep is faster than splitting the work
+    private static final int PARALLEL_MIN_SITES = 4096;
 
-    // NOTE: we use TreeMap for mSites as it is both sorted and also a map (hashtable functions)
-    private Hashtable<Integer, Point2D>   sites       = new Hashtable<Integer, Point2D>();   // internal persistent record
-    private TreeMap<Point2D, Site>      mSites      = new TreeMap<Point2D, Site>(new Comparator<Point2D>() {
-            @Override
-            public int compare(Point2D p1, Point2D p2) {
-                double x1 = p1.getX();
-                double y1 = p1.getY();
-                double x2 = p2.getX();
-                double y2 = p2.getY();
-                if (y1 < y2)
-                    return (-1);
-                if (y1 > y2)
-                    return (1);
-                if (x1 < x2)
-                    return (-1);
-                if (x1 > x2)
-                    return (1);
-                return (0);
-            }
-        });
-    public Vector<line2d>       mEdges      = new Vector<line2d>();
-    public Vector<Point2D>       mVertices   = new Vector<Point2D>();
-
-    // insert a new site, the first inserted is myself
+    private boolean     invalidated = false;
+    private int         version     = 0;            // changes whenever the diagram does
+
+    // the sites, internal persistent record
+    private SiteStore           store       = new SiteStore();
+
+    // the Site record of the cell at the position of the site in each slot of the store, shared by the
+    // sites at the same position, null for sites not in the diagram yet
+    private Site[]              records     = new Site[16];
+    private int                 cellCount   = 0;            // number of distinct positions in the diagram
+    // the diagram, as arrays: edge e bisects the sites edgeSites[2e] and edgeSites[2e+1], ends in the
+    // vertices edgeVertices[2e] and edgeVertices[2e+1] (-1 if unbounded), lies on the line
+    // a*x + b*y = c with (a, b, c) = edgeABC[3e ... 3e+2], and is drawn as the segment edgeLines[4e ... 4e+3];
+    // vertex v is at (vertexXY[2v], vertexXY[2v+1])
+    private int[]               edgeSites    = new int[0];
+    private int[]               edgeVertices = new int[0];
+    private double[]            edgeABC      = new double[0];
+    private double[]            edgeLines    = new double[0];
+    private int                 edgeCount    = 0;
+    private double[]            vertexXY     = new double[0];
+    private int                 vertexCount  = 0;
+
+    // the diagram as objects, built on demand from the arrays for older code; read-only
+    public final List<line2d>   mEdges      = new EdgeView();
+    public final List<Point2D>  mVertices   = new VertexView();
+    private final Map<Integer, Point2D> siteView = new SiteView();
+
+    // the edge bisecting each pair of neighboring sites
+    private EdgeTable           edgeTable   = new EdgeTable(0);
+
+    // the three edges ending in each vertex, -1 where not known
+    private int[]               vertexEdges = new int[0];
+
+    // index of the sites for closest_to(), built on the first query
+    private SiteGrid            grid        = null;
+
+    // while remove or move run, the enclosing neighbors of the sites before their cells were first rebuilt
+    private Hashtable<Integer, Vector<Integer>> recorded = null;
+    private Vector<Integer>     recorded_ids = null;
+
+    // slots of the edges and vertices left free by local repairs, reused before growing
+    private Vector<Integer>     freeEdges   = new Vector<Integer>();
+    private Vector<Integer>     freeVertices = new Vector<Integer>();
+
+    // insert a new site, the first inserted is myself; ids must not be negative,
+    // as -1 stands for no site in the edges and in the queries
     public void insert(int id, Point2D coord) {
+        check_id(id);
         // avoid duplicate insert
-        if (sites.containsKey(id) == false) {
-            invalidated = true;
-            sites.put(id, coord);
+        if (store.contains(id) == false) {
+            // the cell the new site falls in, to repair the diagram around it if it is up to date
+            Site start = (invalidated || cellCount < 3) ? null : walk_to(coord);
+            add_site(id, coord.getX(), coord.getY());
+            // otherwise the diagram is rebuilt on demand
+            if (start == null || !insert_local(id, coord, start))
+                invalidated = true;
         }
     }
 
+    // insert many new sites at once, ids[i] at (xs[i], ys[i]); ids already present are skipped,
+    // and the diagram is rebuilt from scratch on the next query; nothing is inserted if an id is negative
+    public void insertAll(int[] ids, double[] xs, double[] ys) {
+        for (int i = 0; i < ids.length; i++)
+            check_id(ids[i]);
+        boolean added = false;
+        for (int i = 0; i < ids.length; i++)
+            if (store.contains(ids[i]) == false) {
+                add_site(ids[i], xs[i], ys[i]);
+                added = true;
+            }
+        if (added)
+            invalidated = true;
+    }
+
+    // remove a site, returns the ids of the sites whose enclosing neighbors changed
+    public Vector<Integer> remove(int id) {
+        if (store.contains(id) == false)
+            return null;
+
+        recompute();
+        start_recording();
+        record_neighbors(id);
+        drop_site(id);
+        return changed_neighbors();
+    }
+
+    // move a site to a new position, returns the ids of the sites whose enclosing neighbors changed
+    public Vector<Integer> move(int id, Point2D coord) {
+        if (store.contains(id) == false)
+            return null;
+
+        recompute();
+        start_recording();
+        record_neighbors(id);
+        drop_site(id);
+        insert(id, coord);
+        return changed_neighbors();
+    }
+
     // get the point of a site
     public Point2D get(int id) {
-        Point2D p = sites.get(id);
-        return p;
+        int slot = store.slot_of(id);
+        if (slot == -1)
+            return null;
+        return new Point2D.Double(store.x(slot), store.y(slot));
     }
 
     // get a list of enclosing neighbors
@@ -136,22 +238,22 @@ public class SFVoronoi {
         //if (sites.containsKey (new Integer(id)) == false)
         //    return null;
         
-        Point2D coord = sites.get(id);
-        if (coord == null)
+        if (store.contains(id) == false)
             return null;
         
         recompute();
         Vector<Integer> en_list = new Vector<Integer>();
 
-        Enumeration<Integer> e = mSites.get(coord).edge_idxlist.elements ();
+        // a site at the position of another one has the neighbors of the one owning the cell
+        Site s = site_of(id);
+        Enumeration<Integer> e = s.edge_idxlist.elements ();
             
         while (e.hasMoreElements ()) {
             
             int    edge_idx = (e.nextElement ()).intValue ();
-            line2d line     = mEdges.elementAt (edge_idx);
             
             // NOTE: bisecting has changed from storing node index to node id
-            int en_id = (line.bisectingID[0] == id ? line.bisectingID[1] : line.bisectingID[0]);
+            int en_id = other_site(edge_idx, s.num);
             en_list.add(en_id);
         }
         
@@ -162,38 +264,161 @@ public class SFVoronoi {
     // non Voronoi-specific methods
     //
 
-    // returns the closest node to a point
+    // returns the closest node to a point, -1 if there are no nodes
     public int closest_to(Point2D coord) {
-        Integer[] keys    = sites.keySet ().toArray (new Integer[0]);
-        Point2D[] points  = sites.values ().toArray (new Point2D[0]);
+        if (grid == null)
+            grid = new SiteGrid(store);
+        return grid.closest(coord.getX(), coord.getY());
+    }
 
-        // assume the first node is the closest                        
-        int     closest  = (keys[0]).intValue ();
-        double  min_dist2 = coord.distanceSq(points[0]);
-        
-        Point2D pt;
-        double  d;
-        
-        for (int i=1; i<sites.size (); i++) {
-            pt = points[i];            
+    // the ids of the sites at the position of a site, itself included
+    private Vector<Integer> sites_at(int id) {
+        if (grid == null)
+            grid = new SiteGrid(store);
+        int slot = store.slot_of(id);
+        Vector<Integer> found = new Vector<Integer>();
+        grid.at(store.x(slot), store.y(slot), found);
+        return found;
+    }
 
-            if ((d = coord.distanceSq(pt)) < min_dist2) {       
-                min_dist2 = d;
-                closest = (keys[i]).intValue();
+    // get all the neighbors, as a read-only view of the sites
+    public Map<Integer, Point2D> get_sites() {        
+        return siteView;        
+    }
+
+    // get the id of the k-th site, k from 0 to size()-1 in no particular order, until the next insert or remove
+    public int get_site_id(int k) {
+        return store.id(k);
+    }
+
+    public double get_site_x(int k) {
+        return store.x(k);
+    }
+
+    public double get_site_y(int k) {
+        return store.y(k);
+    }
+
+    // get the index of the edge between two sites, -1 if they are not neighbors
+    public int get_edge(int id1, int id2) {
+        settle();
+        return edgeTable.get(id1, id2);
+    }
+
+    // get the index of one (k = 0, 1, 2) of the edges ending in a vertex, -1 if unknown
+    public int get_vertex_edge(int vertex_idx, int k) {
+        settle();
+        return vertexEdges[3*vertex_idx+k];
+    }
+
+    // get the three sites around a vertex
+    public void get_vertex_sites(int vertex_idx, int[] triple) {
+        settle();
+        vertex_sites(vertex_idx, triple);
+    }
+
+    // get the edges of the cell of a site, counterclockwise around it, empty for unknown or hidden sites
+    public int[] get_cell_edges(int id) {
+        settle();
+        Site s = site_of(id);
+        if (s == null || s.num != id)
+            return new int[0];
+
+        int n = s.edge_idxlist.size();
+        int[] cell = new int[n];
+        double[] angle = new double[n];
+        Point2D coord = s.coord;
+        for (int i = 0; i < n; i++) {
+            int edge_idx = s.edge_idxlist.get(i);
+            int other = store.slot_of(other_site(edge_idx, id));
+            double a = Math.atan2(store.y(other) - coord.getY(), store.x(other) - coord.getX());
+            // insertion sort by the direction of the neighbor, cells are small
+            int j = i;
+            while (j > 0 && (angle[j-1] > a || (angle[j-1] == a && cell[j-1] > edge_idx))) {
+                angle[j] = angle[j-1];
+                cell[j] = cell[j-1];
+                j--;
+            }
+            angle[j] = a;
+            cell[j] = edge_idx;
+        }
+        return cell;
+    }
+
+    // get the vertices of the cell of a site, counterclockwise: vertex k joins edges k and k+1
+    // of get_cell_edges, -1 where the cell is open
+    public int[] get_cell_vertices(int id) {
+        int[] cell = get_cell_edges(id);
+        int n = cell.length;
+        int[] vertices = new int[n];
+        for (int k = 0; k < n; k++) {
+            int e1 = cell[k];
+            int e2 = cell[(k+1) % n];
+            vertices[k] = -1;
+            for (int i = 0; i < 2 && n > 1; i++) {
+                int v = edgeVertices[2*e1+i];
+                if (v != -1 && (v == edgeVertices[2*e2] || v == edgeVertices[2*e2+1]))
+                    vertices[k] = v;
             }
         }
-                                
-        return closest;
+        return vertices;
     }
 
-    // get all the neighbors
-    public Hashtable<Integer, Point2D> get_sites() {        
-        return sites;        
+    // get the number of edges
+    public int get_edge_count() {
+        settle();
+        return edgeCount;
+    }
+
+    // get one of the sites (k = 0, 1) bisected by an edge
+    public int get_edge_site(int edge_idx, int k) {
+        settle();
+        return edgeSites[2*edge_idx+k];
+    }
+
+    // get one of the vertices (k = 0, 1) an edge ends in, -1 if the edge is unbounded on that side
+    public int get_edge_vertex(int edge_idx, int k) {
+        settle();
+        return edgeVertices[2*edge_idx+k];
+    }
+
+    // get a (k = 0), b (k = 1) or c (k = 2) of the line a*x + b*y = c an edge lies on
+    public double get_edge_coefficient(int edge_idx, int k) {
+        settle();
+        return edgeABC[3*edge_idx+k];
+    }
+
+    // get x1 (k = 0), y1, x2 or y2 (k = 3) of an edge, clipped to the area around the sites
+    public double get_edge_point(int edge_idx, int k) {
+        settle();
+        return edgeLines[4*edge_idx+k];
+    }
+
+    // get the number of vertices
+    public int get_vertex_count() {
+        settle();
+        return vertexCount;
+    }
+
+    public double get_vertex_x(int vertex_idx) {
+        settle();
+        return vertexXY[2*vertex_idx];
+    }
+
+    public double get_vertex_y(int vertex_idx) {
+        settle();
+        return vertexXY[2*vertex_idx+1];
+    }
+
+    // get a number that changes whenever the diagram does, bringing the diagram up to date first
+    public int get_version() {
+        settle();
+        return version;
     }
 
     // get the number of sites currently maintained
     public int size() {        
-        return sites.size ();
+        return store.size ();
     }
     
     //
@@ -201,28 +426,1216 @@ public class SFVoronoi {
     //
 
     // recompute the Voronoi graph
+    // bring the diagram up to date, and close the slots local repairs left free between the edges
+    // and between the vertices; indices are only handed out after this, and stay valid until the next change
+    private void settle() {
+        recompute();
+        if (freeEdges.isEmpty() && freeVertices.isEmpty())
+            return;
+
+        int[] edge_to = new int[edgeCount];
+        for (int i = 0; i < freeEdges.size(); i++)
+            edge_to[freeEdges.get(i)] = -1;
+        int edges = 0;
+        for (int e = 0; e < edgeCount; e++) {
+            if (edge_to[e] == -1)
+                continue;
+            edge_to[e] = edges;
+            if (edges != e) {
+                System.arraycopy(edgeSites, 2*e, edgeSites, 2*edges, 2);
+                System.arraycopy(edgeVertices, 2*e, edgeVertices, 2*edges, 2);
+                System.arraycopy(edgeABC, 3*e, edgeABC, 3*edges, 3);
+                System.arraycopy(edgeLines, 4*e, edgeLines, 4*edges, 4);
+                edgeTable.put(edgeSites[2*edges], edgeSites[2*edges+1], edges);
+            }
+            edges++;
+        }
+
+        int[] vertex_to = new int[vertexCount];
+        for (int i = 0; i < freeVertices.size(); i++)
+            vertex_to[freeVertices.get(i)] = -1;
+        int vertices = 0;
+        for (int v = 0; v < vertexCount; v++) {
+            if (vertex_to[v] == -1)
+                continue;
+            vertex_to[v] = vertices;
+            for (int k = 0; k < 3; k++) {
+                int e = vertexEdges[3*v+k];
+                vertexEdges[3*vertices+k] = e == -1 ? -1 : edge_to[e];
+            }
+            vertexXY[2*vertices]   = vertexXY[2*v];
+            vertexXY[2*vertices+1] = vertexXY[2*v+1];
+            vertices++;
+        }
+
+        for (int i = 0; i < 2*edges; i++)
+            if (edgeVertices[i] != -1)
+                edgeVertices[i] = vertex_to[edgeVertices[i]];
+        // the cells are renumbered once, through the site owning them; the sites at their position share them
+        for (int slot = 0; slot < store.size(); slot++) {
+            Site s = records[slot];
+            if (s == null || s.num != store.id(slot))
+                continue;
+            for (int i = 0; i < s.edge_idxlist.size(); i++)
+                s.edge_idxlist.set(i, edge_to[s.edge_idxlist.get(i)]);
+        }
+        for (int slot = 0; slot < store.size(); slot++)
+            if (records[slot] != null && records[slot].num != store.id(slot))
+                records[slot] = site_of(records[slot].num);
+
+        edgeCount = edges;
+        vertexCount = vertices;
+        freeEdges.clear();
+        freeVertices.clear();
+    }
+
     private void recompute() {
         if(invalidated == false)
             return;
 
         //clearAll();
-        mSites.clear();
-        mEdges.clear();    
-        mVertices.clear();        
+        clear_diagram();
 
-        // originally in calsvf()
-        sorted = false; triangulate = false; plot = true; debug = true;
+        if (threads <= 1 || store.size() < PARALLEL_MIN_SITES * threads || !new ParallelSweep().run()) {
+            clear_diagram();
 
-        readsites();        
-        curr_site = mSites.values().iterator();
-        
-        geominit();
-        
-        if (plot) 
-            plotinit();
+            // originally in calsvf()
+            sorted = false; triangulate = false; plot = true; debug = true;
+
+            readsites();        
+            next_site = 0;
             
-        voronoi(triangulate);      
+            geominit();
+            
+            if (plot) 
+                plotinit();
+                
+            voronoi(triangulate);      
+        }
         invalidated = false;                
+        version++;
+    }
+
+    private void clear_diagram() {
+        java.util.Arrays.fill(records, null);
+        cellCount = 0;
+        edgeCount = 0;
+        vertexCount = 0;
+        vertexEdges = new int[0];
+        edgeTable = new EdgeTable(3 * store.size());
+        freeEdges.clear();
+        freeVertices.clear();
+    }
+
+    //
+    // parallel construction
+    //
+
+    // The sites are split by x into one strip per thread, and each strip gets its own diagram of
+    // its sites plus a halo of sites on both sides. The cell of a site in a strip is kept when it is
+    // certified: every vertex has a circle holding no other site (because the circle lies within
+    // the halo, or by asking a grid of all the sites) and every unbounded edge lies between two
+    // sites next to each other on the hull of all the sites. The cells that fail come from one more
+    // diagram, of the failing sites and of the certified sites next to them, which holds all their
+    // neighbors. Each edge and vertex is then taken from the diagram of its site of lowest rank by x.
+    // Anything inconsistent, like cocircular sites split differently by two diagrams, gives up and
+    // leaves the work to the sequential sweep.
+    private class ParallelSweep {
+        private int         n;
+        private int[]       order;          // the slots by x, then y
+        private int[]       piece_of;       // the piece taking the cell of the site of each rank
+        private Piece[]     pieces;
+        private EdgeTable   hull;           // the pairs of sites next to each other on the hull
+        private SiteGrid    all_sites;
+
+        boolean run() {
+            n = store.size();
+            order = store.x_order();
+            for (int i = 0; i < n; i++) {
+                // a site at the position of another one would be hidden in one diagram but not in another
+                if (i > 0 && store.same_position(order[i-1], order[i]))
+                    return false;
+            }
+            hull = hull_pairs();
+            all_sites = new SiteGrid(store);
+
+            int k = threads;
+            int halo = (int)Math.min(n, 8 * Math.sqrt(n));
+            pieces = new Piece[k+1];
+            piece_of = new int[n];
+            for (int t = 0; t < k; t++) {
+                Piece piece = new Piece();
+                int from = (int)((long)n * t / k);
+                int to = (int)((long)n * (t+1) / k);
+                piece.from = Math.max(from - halo, 0);
+                piece.to = Math.min(to + halo, n);
+                piece.lo_x = piece.from == 0 ? Double.NEGATIVE_INFINITY : store.x(order[piece.from]);
+                piece.hi_x = piece.to == n ? Double.POSITIVE_INFINITY : store.x(order[piece.to-1]);
+                for (int r = from; r < to; r++)
+                    piece.owned = push(piece.owned, piece.number_owned++, r);
+                for (int r = from; r < to; r++)
+                    piece_of[r] = t;
+                pieces[t] = piece;
+            }
+
+            // the steps share one pool, the one of the caller if there is one
+            final int strips = k;
+            return Tasks.run(threads, new Callable<Boolean>() {
+                public Boolean call() {
+                    return build(strips);
+                }
+            });
+        }
+
+        private boolean build(int k) {
+            // 1. the diagram of each strip, and its cells that cannot be certified
+            Vector<Callable<Boolean>> tasks = new Vector<Callable<Boolean>>();
+            for (int t = 0; t < k; t++) {
+                final Piece piece = pieces[t];
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() {
+                        build_strip(piece);
+                        return true;
+                    }
+                });
+            }
+            Tasks.run_all(threads, tasks);
+
+            // 2. the diagram of the sites whose cells failed
+            if (!build_seam(k))
+                return false;
+
+            // 3. what each piece gives to the whole diagram
+            tasks.clear();
+            for (int t = 0; t <= k; t++) {
+                final Piece piece = pieces[t];
+                if (piece == null)
+                    continue;
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() {
+                        collect(piece);
+                        return true;
+                    }
+                });
+            }
+            Tasks.run_all(threads, tasks);
+            int edges = 0, vertices = 0;
+            for (int t = 0; t <= k; t++) {
+                if (pieces[t] == null)
+                    continue;
+                pieces[t].edge_base = edges;
+                pieces[t].vertex_base = vertices;
+                edges += pieces[t].number_edges;
+                vertices += pieces[t].number_vertices;
+            }
+            reserve(edges, vertices);
+            edgeCount = edges;
+            vertexCount = vertices;
+
+            // 4. copy the edges, vertices and cells, each piece into its own ranges
+            for (int t = 0; t <= k; t++)
+                if (pieces[t] != null)
+                    to_global(pieces[t]);
+            tasks.clear();
+            for (int t = 0; t <= k; t++) {
+                final Piece piece = pieces[t];
+                if (piece == null)
+                    continue;
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() {
+                        return fill(piece);
+                    }
+                });
+            }
+            if (Tasks.run_all(threads, tasks).contains(false))
+                return false;
+
+            for (int e = 0; e < edgeCount; e++)
+                edgeTable.put(edgeSites[2*e], edgeSites[2*e+1], e);
+            cellCount = n;
+            nsites = n;
+            update_bounds();
+            geominit();
+            plotinit();
+
+            // 5. clip the edges to the bounds of all the sites
+            tasks.clear();
+            for (int t = 0; t < k; t++) {
+                final int from = (int)((long)edgeCount * t / k);
+                final int to = (int)((long)edgeCount * (t+1) / k);
+                tasks.add(new Callable<Boolean>() {
+                    public Boolean call() {
+                        for (int e = from; e < to; e++)
+                            reclip(e);
+                        return true;
+                    }
+                });
+            }
+            Tasks.run_all(threads, tasks);
+            return true;
+        }
+
+        private void build_strip(Piece piece) {
+            piece.local = new SFVoronoi(sweep_kind);
+            piece.ranks = new int[piece.to - piece.from];
+            for (int r = piece.from; r < piece.to; r++) {
+                piece.local.add_site(store.id(order[r]), store.x(order[r]), store.y(order[r]));
+                piece.ranks[r - piece.from] = r;
+            }
+            piece.local.invalidated = true;
+            piece.local.recompute();
+
+            // 0 not looked at yet, 1 certified, 2 failed
+            byte[] checked = new byte[piece.local.vertexCount];
+            int kept = 0;
+            for (int i = 0; i < piece.number_owned; i++) {
+                int r = piece.owned[i];
+                if (certified(piece, store.id(order[r]), checked))
+                    piece.owned[kept++] = r;
+                else
+                    piece.failed = push(piece.failed, piece.number_failed++, r);
+            }
+            piece.number_owned = kept;
+        }
+
+        private boolean certified(Piece piece, int id, byte[] checked) {
+            SFVoronoi local = piece.local;
+            Site s = local.site_of(id);
+            if (s == null || s.edge_idxlist.isEmpty())
+                return false;
+            for (int i = 0; i < s.edge_idxlist.size(); i++) {
+                int e = s.edge_idxlist.get(i);
+                for (int j = 0; j < 2; j++) {
+                    int v = local.edgeVertices[2*e+j];
+                    if (v == -1) {
+                        if (hull.get(local.edgeSites[2*e], local.edgeSites[2*e+1]) == -1)
+                            return false;
+                        continue;
+                    }
+                    if (checked[v] == 0)
+                        checked[v] = empty_circle(piece, v, s.coord) ? (byte)1 : (byte)2;
+                    if (checked[v] == 2)
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        // whether the circle through the sites around a vertex of a strip, one of them at a point, holds no other site
+        private boolean empty_circle(Piece piece, int v, Point2D site) {
+            SFVoronoi local = piece.local;
+            double cx = local.vertexXY[2*v];
+            double cy = local.vertexXY[2*v+1];
+            double dx = site.getX() - cx;
+            double dy = site.getY() - cy;
+            double r2 = dx * dx + dy * dy;
+            double r = Math.sqrt(r2);
+            if (cx - r > piece.lo_x && cx + r < piece.hi_x)
+                return true;
+            // a larger circle would take too long to look into
+            if (!(2 * r < piece.hi_x - piece.lo_x))
+                return false;
+            return !all_sites.any_closer(cx, cy, r2 * (1 - 1e-9));
+        }
+
+        private boolean build_seam(int k) {
+            int failed = 0;
+            for (int t = 0; t < k; t++)
+                failed += pieces[t].number_failed;
+            if (failed == 0)
+                return true;
+            if (failed > n / 4)
+                return false;
+
+            // the failing sites, and the certified sites they are next to
+            Piece seam = new Piece();
+            boolean[] in_seam = new boolean[n];
+            for (int t = 0; t < k; t++)
+                for (int i = 0; i < pieces[t].number_failed; i++) {
+                    int r = pieces[t].failed[i];
+                    seam.owned = push(seam.owned, seam.number_owned++, r);
+                    piece_of[r] = k;
+                    in_seam[r] = true;
+                }
+            // a certified cell next to a failing site has its border with it in the diagram of its strip,
+            // where the failing site has the same border in its cell
+            int[] others = new int[0];
+            int number_others = 0;
+            for (int t = 0; t < k; t++) {
+                Piece piece = pieces[t];
+                for (int i = 0; i < seam.number_owned; i++) {
+                    int r = seam.owned[i];
+                    if (r < piece.from || r >= piece.to)
+                        continue;
+                    Site s = piece.local.site_of(store.id(order[r]));
+                    for (int j = 0; j < s.edge_idxlist.size(); j++) {
+                        int other = piece.rank_of(piece.local.other_site(s.edge_idxlist.get(j), s.num));
+                        if (piece_of[other] == t && !in_seam[other]) {
+                            in_seam[other] = true;
+                            others = push(others, number_others++, other);
+                        }
+                    }
+                }
+            }
+
+            seam.local = new SFVoronoi(sweep_kind);
+            seam.ranks = new int[seam.number_owned + number_others];
+            for (int i = 0; i < seam.number_owned; i++) {
+                int slot = order[seam.owned[i]];
+                seam.local.add_site(store.id(slot), store.x(slot), store.y(slot));
+                seam.ranks[i] = seam.owned[i];
+            }
+            for (int i = 0; i < number_others; i++) {
+                int slot = order[others[i]];
+                seam.local.add_site(store.id(slot), store.x(slot), store.y(slot));
+                seam.ranks[seam.number_owned + i] = others[i];
+            }
+            seam.local.invalidated = true;
+            seam.local.recompute();
+            pieces[k] = seam;
+            return true;
+        }
+
+        // the edges and vertices a piece gives: those whose site of lowest rank is one of its cells
+        private void collect(Piece piece) {
+            SFVoronoi local = piece.local;
+            piece.edge_map = new int[local.edgeCount];
+            piece.vertex_map = new int[local.vertexCount];
+            java.util.Arrays.fill(piece.edge_map, -1);
+            java.util.Arrays.fill(piece.vertex_map, -1);
+
+            // the lowest rank among the sites of each edge and each vertex, looked up once
+            piece.edge_low = new int[local.edgeCount];
+            for (int e = 0; e < local.edgeCount; e++)
+                piece.edge_low[e] = lowest(piece, local.edgeSites, 2*e, 2);
+            piece.vertex_low = new int[local.vertexCount];
+            for (int v = 0; v < local.vertexCount; v++) {
+                piece.vertex_low[v] = Integer.MAX_VALUE;
+                for (int m = 0; m < 3; m++) {
+                    int e = local.vertexEdges[3*v+m];
+                    if (e != -1)
+                        piece.vertex_low[v] = Math.min(piece.vertex_low[v], piece.edge_low[e]);
+                }
+            }
+
+            for (int i = 0; i < piece.number_owned; i++) {
+                int r = piece.owned[i];
+                Site s = local.site_of(store.id(order[r]));
+                for (int j = 0; j < s.edge_idxlist.size(); j++) {
+                    int e = s.edge_idxlist.get(j);
+                    if (piece.edge_map[e] == -1 && piece.edge_low[e] == r)
+                        piece.edge_map[e] = piece.number_edges++;
+                    for (int m = 0; m < 2; m++) {
+                        int v = local.edgeVertices[2*e+m];
+                        if (v != -1 && piece.vertex_map[v] == -1 && piece.vertex_low[v] == r)
+                            piece.vertex_map[v] = piece.number_vertices++;
+                    }
+                }
+            }
+        }
+
+        private void to_global(Piece piece) {
+            for (int e = 0; e < piece.edge_map.length; e++)
+                if (piece.edge_map[e] != -1)
+                    piece.edge_map[e] += piece.edge_base;
+            for (int v = 0; v < piece.vertex_map.length; v++)
+                if (piece.vertex_map[v] != -1)
+                    piece.vertex_map[v] += piece.vertex_base;
+        }
+
+        private boolean fill(Piece piece) {
+            SFVoronoi local = piece.local;
+            int[] triple = new int[3];
+            for (int e = 0; e < local.edgeCount; e++) {
+                int g = piece.edge_map[e];
+                if (g == -1)
+                    continue;
+                for (int m = 0; m < 3; m++)
+                    edgeABC[3*g+m] = local.edgeABC[3*e+m];
+                for (int j = 0; j < 2; j++) {
+                    int id = local.edgeSites[2*e+j];
+                    edgeSites[2*g+j] = id;
+                    // the diagram giving the cell of the other site must have the edge too
+                    Piece other = pieces[piece_of[piece.rank_of(id)]];
+                    if (other != piece && other.local.find_edge(local.edgeSites[2*e], local.edgeSites[2*e+1]) == -1)
+                        return false;
+                    int v = local.edgeVertices[2*e+j];
+                    edgeVertices[2*g+j] = v == -1 ? -1 : global_vertex(piece, v, triple);
+                    if (v != -1 && edgeVertices[2*g+j] == -1)
+                        return false;
+                }
+            }
+            for (int v = 0; v < local.vertexCount; v++) {
+                int g = piece.vertex_map[v];
+                if (g == -1)
+                    continue;
+                vertexXY[2*g] = local.vertexXY[2*v];
+                vertexXY[2*g+1] = local.vertexXY[2*v+1];
+                for (int m = 0; m < 3; m++) {
+                    int e = local.vertexEdges[3*v+m];
+                    vertexEdges[3*g+m] = e == -1 ? -1 : global_edge(piece, e);
+                    if (e != -1 && vertexEdges[3*g+m] == -1)
+                        return false;
+                }
+            }
+            for (int i = 0; i < piece.number_owned; i++) {
+                int slot = order[piece.owned[i]];
+                Site cell = local.site_of(store.id(slot));
+                Site s = new Site(store.x(slot), store.y(slot));
+                s.num = cell.num;
+                for (int j = 0; j < cell.edge_idxlist.size(); j++) {
+                    int g = global_edge(piece, cell.edge_idxlist.get(j));
+                    if (g == -1)
+                        return false;
+                    s.edge_idxlist.add(g);
+                }
+                records[slot] = s;
+            }
+            return true;
+        }
+
+        // the index in the whole diagram of an edge of a piece, -1 if the piece giving it does not have it
+        private int global_edge(Piece piece, int e) {
+            SFVoronoi local = piece.local;
+            Piece owner = pieces[piece_of[piece.edge_low[e]]];
+            if (owner == piece)
+                return piece.edge_map[e];
+            int found = owner.local.find_edge(local.edgeSites[2*e], local.edgeSites[2*e+1]);
+            return found == -1 ? -1 : owner.edge_map[found];
+        }
+
+        // the index in the whole diagram of a vertex of a piece, -1 if the piece giving it does not have it
+        private int global_vertex(Piece piece, int v, int[] triple) {
+            Piece owner = pieces[piece_of[piece.vertex_low[v]]];
+            if (owner == piece)
+                return piece.vertex_map[v];
+            piece.local.vertex_sites(v, triple);
+            int found = owner.local.find_vertex(triple[0], triple[1], triple[2]);
+            return found == -1 ? -1 : owner.vertex_map[found];
+        }
+
+        // the rank of the site of lowest rank among some ids of the sites of a piece
+        private int lowest(Piece piece, int[] ids, int from, int count) {
+            int best = Integer.MAX_VALUE;
+            for (int i = from; i < from + count; i++)
+                if (ids[i] != -1)
+                    best = Math.min(best, piece.rank_of(ids[i]));
+            return best;
+        }
+
+        // the pairs of sites next to each other on the hull, collinear ones included (monotone chain)
+        private EdgeTable hull_pairs() {
+            int[] chain = new int[n+1];
+            EdgeTable pairs = new EdgeTable(64);
+            for (int pass = 0; pass < 2; pass++) {
+                int h = 0;
+                for (int i = 0; i < n; i++) {
+                    int p = order[pass == 0 ? i : n-1-i];
+                    while (h >= 2 && turn(chain[h-2], chain[h-1], p) < 0)
+                        h--;
+                    chain[h++] = p;
+                }
+                for (int i = 1; i < h; i++)
+                    pairs.put(store.id(chain[i-1]), store.id(chain[i]), 0);
+            }
+            return pairs;
+        }
+
+        private double turn(int o, int a, int b) {
+            return (store.x(a) - store.x(o)) * (store.y(b) - store.y(o)) - (store.y(a) - store.y(o)) * (store.x(b) - store.x(o));
+        }
+    }
+
+    // a diagram giving some of the cells to the parallel construction
+    private static class Piece {
+        SFVoronoi   local;
+        int         from, to;               // ranks of the sites in local, for strips
+        double      lo_x, hi_x;             // every site strictly between them is in local, for strips
+        int[]       owned = new int[0];     // ranks of the sites whose cells it gives
+        int         number_owned;
+        int[]       failed = new int[0];    // ranks of the sites whose cells could not be certified
+        int         number_failed;
+        int[]       edge_map, vertex_map;   // local to global, -1 for those given by other pieces
+        int         number_edges, number_vertices;
+        int         edge_base, vertex_base;
+        int[]       ranks;                  // rank of the site in each slot of local
+        int[]       edge_low, vertex_low;   // lowest rank among the sites of each local edge and vertex
+
+        // the rank of one of the sites of local, looked up in its store, much smaller than the whole one
+        int rank_of(int id) {
+            return ranks[local.store.slot_of(id)];
+        }
+    }
+
+    private static int[] push(int[] a, int n, int value) {
+        if (n == a.length)
+            a = java.util.Arrays.copyOf(a, 2 * n + 4);
+        a[n] = value;
+        return a;
+    }
+
+    //
+    // incremental updates
+    //
+
+    // insert a site into an up-to-date diagram repairing only the cells around it (Bowyer-Watson),
+    // start is the site closest to it; returns false if the diagram has to be recomputed from scratch instead
+    private boolean insert_local(int id, Point2D coord, Site start) {
+        // a site at the position of another one has no cell of its own
+        if (start.coord.getX() == coord.getX() && start.coord.getY() == coord.getY())
+            return false;
+
+        // collect the vertices whose circle contains the new site, starting from the cell it falls in;
+        // unbounded edges stand for the triangles outside the convex hull and are stored as -(edge+1)
+        Vector<Integer> conflicts = new Vector<Integer>();
+        Vector<Integer> seen      = new Vector<Integer>();
+        Vector<Integer> todo      = new Vector<Integer>();
+
+        for (int i = 0; i < start.edge_idxlist.size(); i++)
+            if (!push_ends(start.edge_idxlist.get(i), todo))
+                return false;
+
+        while (!todo.isEmpty()) {
+            Integer node = todo.remove(todo.size()-1);
+            if (seen.contains(node))
+                continue;
+            seen.add(node);
+
+            if (node >= 0) {
+                if (!vertex_in_conflict(node, coord))
+                    continue;
+                conflicts.add(node);
+                for (int k = 0; k < 3; k++)
+                    if (!push_ends(vertexEdges[3*node+k], todo))
+                        return false;
+            }
+            else {
+                int edge = -node-1;
+                int c = ghost_in_conflict(edge, coord);
+                if (c < 0)
+                    return false;
+                if (c == 0)
+                    continue;
+                conflicts.add(node);
+                if (!push_ends(edge, todo))
+                    return false;
+                // the nearby triangles outside the hull hang on the other unbounded edges of both sites
+                for (int j = 0; j < 2; j++) {
+                    Site s = site_of(edgeSites[2*edge+j]);
+                    for (int i = 0; i < s.edge_idxlist.size(); i++) {
+                        int other = s.edge_idxlist.get(i);
+                        if (other != edge && (edgeVertices[2*other] == -1 || edgeVertices[2*other+1] == -1))
+                            todo.add(-other-1);
+                    }
+                }
+            }
+        }
+        if (conflicts.isEmpty())
+            return false;
+
+        // the sites of the triangles in conflict become the neighbors of the new site
+        Vector<Integer> affected = new Vector<Integer>();
+        affected.add(id);
+        int[] triple = new int[3];
+        for (int i = 0; i < conflicts.size(); i++) {
+            int node = conflicts.get(i);
+            if (node >= 0)
+                vertex_sites(node, triple);
+            else {
+                triple[0] = edgeSites[2*(-node-1)];
+                triple[1] = edgeSites[2*(-node-1)+1];
+                triple[2] = edgeSites[2*(-node-1)+1];
+            }
+            for (int k = 0; k < 3; k++)
+                if (!affected.contains(triple[k]))
+                    affected.add(triple[k]);
+        }
+
+        if (!rebuild_cells(affected, -1))
+            return false;
+
+        // a larger bounding box moves the clipping area, and with it all the unbounded edges
+        if (coord.getX() < xmin || coord.getX() > xmax || coord.getY() < ymin || coord.getY() > ymax) {
+            xmin = Math.min(xmin, coord.getX());
+            xmax = Math.max(xmax, coord.getX());
+            ymin = Math.min(ymin, coord.getY());
+            ymax = Math.max(ymax, coord.getY());
+            plotinit();
+            reclip_all();
+        }
+        return true;
+    }
+
+    // recompute the cells of the affected sites from a small diagram of them and their neighbors,
+    // the site 'gone' has just been removed; returns false, leaving everything untouched, on inconsistencies
+    private boolean rebuild_cells(Vector<Integer> affected, int gone) {
+
+        // the cells of the affected sites only depend on the sites next to them
+        Vector<Integer> local_ids = new Vector<Integer>(affected);
+        Vector<Integer> old_edges = new Vector<Integer>();
+        for (int i = 0; i < affected.size(); i++) {
+            Site s = site_of(affected.get(i));
+            if (s == null)
+                continue;
+            for (int j = 0; j < s.edge_idxlist.size(); j++) {
+                Integer edge_idx = s.edge_idxlist.get(j);
+                int other = other_site(edge_idx, affected.get(i));
+                if (other != gone && !local_ids.contains(other))
+                    local_ids.add(other);
+                if (!old_edges.contains(edge_idx))
+                    old_edges.add(edge_idx);
+            }
+        }
+
+        SFVoronoi local = new SFVoronoi(sweep_kind);
+        for (int i = 0; i < local_ids.size(); i++)
+            local.add_site(local_ids.get(i), store.x(store.slot_of(local_ids.get(i))), store.y(store.slot_of(local_ids.get(i))));
+        local.invalidated = true;
+        local.recompute();
+
+        // match the local edges and vertices with the ones already in the diagram
+        int nledges = local.edgeCount;
+        int[] edge_map = new int[nledges];
+        boolean[] adopted = new boolean[nledges];
+        Vector<Integer> kept_edges = new Vector<Integer>();
+        for (int i = 0; i < nledges; i++) {
+            int id0 = local.edgeSites[2*i];
+            int id1 = local.edgeSites[2*i+1];
+            boolean in0 = affected.contains(id0);
+            boolean in1 = affected.contains(id1);
+            edge_map[i] = find_edge(id0, id1);
+            adopted[i] = in0 || in1;
+            // a border between an affected site and an unaffected one cannot appear or vanish
+            if (adopted[i] && !(in0 && in1) && edge_map[i] == -1)
+                return false;
+            if (adopted[i] && edge_map[i] != -1)
+                kept_edges.add(edge_map[i]);
+        }
+
+        int nlvertices = local.vertexCount;
+        int[] vertex_map = new int[nlvertices];
+        boolean[] vadopted = new boolean[nlvertices];
+        Vector<Integer> kept_vertices = new Vector<Integer>();
+        int[] triple = new int[3];
+        for (int v = 0; v < nlvertices; v++) {
+            local.vertex_sites(v, triple);
+            boolean all_in = true;
+            for (int k = 0; k < 3; k++) {
+                if (affected.contains(triple[k]))
+                    vadopted[v] = true;
+                else
+                    all_in = false;
+            }
+            if (!vadopted[v])
+                continue;
+            vertex_map[v] = find_vertex(triple[0], triple[1], triple[2]);
+            if (vertex_map[v] == -1 && !all_in)
+                return false;
+            if (vertex_map[v] != -1)
+                kept_vertices.add(vertex_map[v]);
+            for (int k = 0; k < 3; k++) {
+                int edge_idx = local.vertexEdges[3*v+k];
+                if (edge_idx == -1 || (!adopted[edge_idx] && edge_map[edge_idx] == -1))
+                    return false;
+            }
+        }
+
+        // whatever is not kept must lie entirely among the affected sites
+        Vector<Integer> dead_edges = new Vector<Integer>();
+        Vector<Integer> dead_vertices = new Vector<Integer>();
+        for (int i = 0; i < old_edges.size(); i++) {
+            Integer edge_idx = old_edges.get(i);
+            for (int j = 0; j < 2; j++) {
+                Integer v = edgeVertices[2*edge_idx+j];
+                if (v != -1 && !kept_vertices.contains(v) && !dead_vertices.contains(v)) {
+                    vertex_sites(v, triple);
+                    for (int k = 0; k < 3; k++)
+                        if (triple[k] != gone && !affected.contains(triple[k]))
+                            return false;
+                    dead_vertices.add(v);
+                }
+            }
+            if (kept_edges.contains(edge_idx))
+                continue;
+            for (int j = 0; j < 2; j++)
+                if (edgeSites[2*edge_idx+j] != gone && !affected.contains(edgeSites[2*edge_idx+j]))
+                    return false;
+            dead_edges.add(edge_idx);
+        }
+
+        //
+        // from here on the diagram is modified
+        //
+
+        for (int i = 0; i < affected.size(); i++)
+            record_neighbors(affected.get(i));
+
+        for (int i = 0; i < dead_edges.size(); i++)
+            free_edge(dead_edges.get(i));
+        for (int i = 0; i < dead_vertices.size(); i++)
+            free_vertex(dead_vertices.get(i));
+
+        for (int v = 0; v < nlvertices; v++)
+            if (vadopted[v] && vertex_map[v] == -1)
+                vertex_map[v] = alloc_vertex(local.vertexXY[2*v], local.vertexXY[2*v+1]);
+
+        for (int i = 0; i < nledges; i++) {
+            if (!adopted[i])
+                continue;
+            if (edge_map[i] == -1)
+                edge_map[i] = alloc_edge();
+            int to = edge_map[i];
+            for (int k = 0; k < 3; k++)
+                edgeABC[3*to+k] = local.edgeABC[3*i+k];
+            for (int j = 0; j < 2; j++) {
+                int v = local.edgeVertices[2*i+j];
+                edgeSites[2*to+j] = local.edgeSites[2*i+j];
+                edgeVertices[2*to+j] = v == -1 ? -1 : vertex_map[v];
+            }
+            edgeTable.put(edgeSites[2*to], edgeSites[2*to+1], to);
+        }
+
+        for (int v = 0; v < nlvertices; v++)
+            if (vadopted[v])
+                for (int k = 0; k < 3; k++)
+                    vertexEdges[3*vertex_map[v]+k] = edge_map[local.vertexEdges[3*v+k]];
+
+        for (int i = 0; i < affected.size(); i++) {
+            Integer id = affected.get(i);
+            Site s = site_of(id);
+            if (s == null) {
+                int slot = store.slot_of(id);
+                s = new Site(store.x(slot), store.y(slot));
+                s.num = id;
+                records[slot] = s;
+                cellCount++;
+            }
+            s.edge_idxlist.clear();
+            Enumeration<Integer> e = local.site_of(id).edge_idxlist.elements();
+            while (e.hasMoreElements())
+                s.edge_idxlist.add(edge_map[e.nextElement()]);
+            // the sites at the same position share the cell
+            Vector<Integer> twins = sites_at(id);
+            for (int k = 0; k < twins.size(); k++)
+                records[store.slot_of(twins.get(k))] = s;
+        }
+        nsites = cellCount;
+
+        for (int i = 0; i < nledges; i++)
+            if (adopted[i])
+                reclip(edge_map[i]);
+        version++;
+        return true;
+    }
+
+    // take a site out of an up-to-date diagram, repairing the cells of its neighbors
+    private void drop_site(int id) {
+        Point2D coord = get(id);
+        Vector<Integer> affected = get_en(id);
+        Site record = site_of(id);
+        remove_site(id);
+
+        // a site sharing its position with another one has no cell of its own
+        if (!invalidated && record.num != id)
+            return;
+        // nor can its cell be handed over to another site at the same position
+        if (!invalidated && closest_to(coord) != -1 && get(closest_to(coord)).equals(coord)) {
+            invalidated = true;
+            return;
+        }
+        if (invalidated || cellCount <= 4 || !rebuild_cells(affected, id)) {
+            invalidated = true;
+            return;
+        }
+        cellCount--;
+        nsites = cellCount;
+
+        // losing a site on the bounding box moves the clipping area
+        if ((coord.getX() == xmin || coord.getX() == xmax || coord.getY() == ymin || coord.getY() == ymax) &&
+            update_bounds())
+            reclip_all();
+    }
+
+    // from now on, keep the enclosing neighbors each site had before a repair first rebuilt its cell
+    private void start_recording() {
+        recorded = new Hashtable<Integer, Vector<Integer>>();
+        recorded_ids = new Vector<Integer>();
+    }
+
+    // keep the enclosing neighbors of a site in an up-to-date diagram, and of the sites at its
+    // position that read them from its cell, unless they were kept already
+    private void record_neighbors(int id) {
+        if (recorded == null)
+            return;
+        Vector<Integer> ids = sites_at(id);
+        for (int k = 0; k < ids.size(); k++) {
+            Integer twin = ids.get(k);
+            if (recorded.containsKey(twin))
+                continue;
+            Vector<Integer> list = new Vector<Integer>();
+            Site s = site_of(twin);
+            if (s != null)
+                for (int i = 0; i < s.edge_idxlist.size(); i++)
+                    list.add(other_site(s.edge_idxlist.get(i), s.num));
+            recorded.put(twin, list);
+            recorded_ids.add(twin);
+        }
+    }
+
+    // the sites whose enclosing neighbors are not the ones they had when the recording started:
+    // those whose cells the local repairs rebuilt and, if the diagram has to be rebuilt from
+    // scratch, those reading their neighbors from a cell that gains or loses a border with it
+    private Vector<Integer> changed_neighbors() {
+        Vector<Integer> changed = new Vector<Integer>();
+        if (invalidated) {
+            // the borders of the diagram as the repairs left it, and the cell each site read them from
+            int[] old_owner = new int[store.size()];
+            for (int i = 0; i < old_owner.length; i++)
+                old_owner[i] = records[i] == null ? -1 : records[i].num;
+            int old_count = 0;
+            int[] old_sites = new int[2*edgeCount];
+            for (int i = 0; i < edgeCount; i++)
+                if (edgeSites[2*i] != -1) {
+                    old_sites[2*old_count] = edgeSites[2*i];
+                    old_sites[2*old_count+1] = edgeSites[2*i+1];
+                    old_count++;
+                }
+            EdgeTable old_edges = new EdgeTable(old_count);
+            for (int i = 0; i < old_count; i++)
+                old_edges.put(old_sites[2*i], old_sites[2*i+1], i);
+            recompute();
+
+            Vector<Integer> moved = new Vector<Integer>();
+            for (int i = 0; i < old_count; i++)
+                if (edgeTable.get(old_sites[2*i], old_sites[2*i+1]) == -1) {
+                    moved.add(old_sites[2*i]);
+                    moved.add(old_sites[2*i+1]);
+                }
+            for (int i = 0; i < edgeCount; i++)
+                if (edgeSites[2*i] != -1 && old_edges.get(edgeSites[2*i], edgeSites[2*i+1]) == -1) {
+                    moved.add(edgeSites[2*i]);
+                    moved.add(edgeSites[2*i+1]);
+                }
+            // the sites the repairs did not touch had the same neighbors before them
+            Vector<Integer> candidates = new Vector<Integer>();
+            for (int i = 0; i < moved.size(); i++) {
+                if (!store.contains(moved.get(i)))
+                    continue;
+                Vector<Integer> ids = sites_at(moved.get(i));
+                for (int k = 0; k < ids.size(); k++)
+                    if (!recorded.containsKey(ids.get(k)) && !candidates.contains(ids.get(k)))
+                        candidates.add(ids.get(k));
+            }
+            Hashtable<Integer, Vector<Integer>> old_lists = new Hashtable<Integer, Vector<Integer>>();
+            for (int i = 0; i < candidates.size(); i++) {
+                int owner = old_owner[store.slot_of(candidates.get(i))];
+                if (owner != -1 && !old_lists.containsKey(owner))
+                    old_lists.put(owner, new Vector<Integer>());
+            }
+            for (int i = 0; i < old_count; i++)
+                for (int j = 0; j < 2; j++)
+                    if (old_lists.containsKey(old_sites[2*i+j]))
+                        old_lists.get(old_sites[2*i+j]).add(old_sites[2*i+1-j]);
+            for (int i = 0; i < candidates.size(); i++) {
+                int owner = old_owner[store.slot_of(candidates.get(i))];
+                Vector<Integer> old_list = owner == -1 ? new Vector<Integer>() : old_lists.get(owner);
+                Vector<Integer> new_list = get_en(candidates.get(i));
+                if (old_list.size() != new_list.size() || !old_list.containsAll(new_list))
+                    changed.add(candidates.get(i));
+            }
+        }
+        for (int i = 0; i < recorded_ids.size(); i++) {
+            Integer id = recorded_ids.get(i);
+            Vector<Integer> old_list = recorded.get(id);
+            Vector<Integer> new_list = get_en(id);
+            if (new_list != null && (old_list.size() != new_list.size() || !old_list.containsAll(new_list)))
+                changed.add(id);
+        }
+        recorded = null;
+        recorded_ids = null;
+        return changed;
+    }
+
+    // recompute the bounding box of the sites, returns true if it changed
+    private boolean update_bounds() {
+        double oxmin = xmin, oxmax = xmax, oymin = ymin, oymax = ymax;
+        xmin = xmax = store.x(0);
+        ymin = ymax = store.y(0);
+        for (int k = 1; k < store.size(); k++) {
+            xmin = Math.min(xmin, store.x(k));
+            xmax = Math.max(xmax, store.x(k));
+            ymin = Math.min(ymin, store.y(k));
+            ymax = Math.max(ymax, store.y(k));
+        }
+        if (oxmin == xmin && oxmax == xmax && oymin == ymin && oymax == ymax)
+            return false;
+        plotinit();
+        return true;
+    }
+
+    // greedy walk along the Delaunay edges towards the site closest to a point
+    private Site walk_to(Point2D coord) {
+        Site current = site_of(closest_to(coord));
+        double best = coord.distanceSq(current.coord);
+        boolean go_on = true;
+        while (go_on) {
+            go_on = false;
+            Site next = current;
+            for (int i = 0; i < current.edge_idxlist.size(); i++) {
+                Site s = site_of(other_site(current.edge_idxlist.get(i), current.num));
+                double d = coord.distanceSq(s.coord);
+                if (d < best) {
+                    best = d;
+                    next = s;
+                    go_on = true;
+                }
+            }
+            current = next;
+        }
+        return current;
+    }
+
+    // queue both ends of an edge for the conflict search, false for edges with no vertex at all
+    private boolean push_ends(int edge_idx, Vector<Integer> todo) {
+        if (edgeVertices[2*edge_idx] == -1 && edgeVertices[2*edge_idx+1] == -1)
+            return false;
+        for (int j = 0; j < 2; j++)
+            todo.add(edgeVertices[2*edge_idx+j] != -1 ? edgeVertices[2*edge_idx+j] : -edge_idx-1);
+        return true;
+    }
+
+    // whether a point falls in the circle around a vertex
+    private boolean vertex_in_conflict(int v, Point2D coord) {
+        Point2D center = new Point2D.Double(vertexXY[2*v], vertexXY[2*v+1]);
+        int site = store.slot_of(edgeSites[2*vertexEdges[3*v]]);
+        return coord.distanceSq(center) < center.distanceSq(store.x(site), store.y(site));
+    }
+
+    // whether a point lies beyond the hull side whose sites are bisected by an unbounded edge:
+    // 1 if so, 0 if not, -1 if it is aligned with it
+    private int ghost_in_conflict(int edge_idx, Point2D coord) {
+        int id0 = edgeSites[2*edge_idx];
+        int id1 = edgeSites[2*edge_idx+1];
+        int v = edgeVertices[2*edge_idx] != -1 ? edgeVertices[2*edge_idx] : edgeVertices[2*edge_idx+1];
+        int[] triple = new int[3];
+        vertex_sites(v, triple);
+        int inner = triple[0];
+        for (int k = 1; k < 3; k++)
+            if (inner == id0 || inner == id1)
+                inner = triple[k];
+
+        Point2D a = get(id0);
+        Point2D b = get(id1);
+        double side  = orientation(a, b, coord);
+        double other = orientation(a, b, get(inner));
+        if (side == 0 || other == 0)
+            return -1;
+        return (side > 0) != (other > 0) ? 1 : 0;
+    }
+
+    private static double orientation(Point2D a, Point2D b, Point2D c) {
+        return (b.getX() - a.getX()) * (c.getY() - a.getY()) - (b.getY() - a.getY()) * (c.getX() - a.getX());
+    }
+
+    private void reclip_all() {
+        for (int i = 0; i < edgeCount; i++)
+            if (edgeSites[2*i] != -1)
+                reclip(i);
+    }
+
+    private void reclip(int edge_idx) {
+        for (int k = 0; k < 4; k++)
+            edgeLines[4*edge_idx+k] = 0;
+        int v0 = edgeVertices[2*edge_idx];
+        int v1 = edgeVertices[2*edge_idx+1];
+        clip_line(edge_idx,
+                  v0 != -1 ? new Point2D.Double(vertexXY[2*v0], vertexXY[2*v0+1]) : null,
+                  v1 != -1 ? new Point2D.Double(vertexXY[2*v1], vertexXY[2*v1+1]) : null);
+    }
+
+    // the Site record of a site id, null if unknown
+    private Site site_of(int id) {
+        int slot = store.slot_of(id);
+        return slot == -1 ? null : records[slot];
+    }
+
+    private static void check_id(int id) {
+        if (id < 0)
+            throw new IllegalArgumentException("site id " + id + " is negative");
+    }
+
+    // the id must not be negative nor stored already
+    private void add_site(int id, double x, double y) {
+        int slot = store.add(id, x, y);
+        if (slot == -1)
+            throw new IllegalArgumentException("site id " + id + " is negative or already stored");
+        if (slot == records.length)
+            records = java.util.Arrays.copyOf(records, 2 * records.length);
+        records[slot] = null;
+        if (grid != null && !grid.add(id, x, y))
+            grid = null;
+    }
+
+    private void remove_site(int id) {
+        int slot = store.slot_of(id);
+        double x = store.x(slot);
+        double y = store.y(slot);
+        store.remove(id);
+        // the store moved its last site into the freed slot
+        records[slot] = records[store.size()];
+        records[store.size()] = null;
+        if (grid != null)
+            grid.remove(id, x, y);
+    }
+
+    private int other_site(int edge_idx, int id) {
+        return edgeSites[2*edge_idx] == id ? edgeSites[2*edge_idx+1] : edgeSites[2*edge_idx];
+    }
+
+    // index of the edge between two sites, -1 if they are not neighbors
+    private int find_edge(int id1, int id2) {
+        return edgeTable.get(id1, id2);
+    }
+
+    // index of the vertex shared by three sites, -1 if there is none
+    private int find_vertex(int id1, int id2, int id3) {
+        int edge_idx = find_edge(id1, id2);
+        int third = id3;
+        if (edge_idx == -1) {
+            edge_idx = find_edge(id2, id3);
+            third = id1;
+        }
+        if (edge_idx == -1) {
+            edge_idx = find_edge(id1, id3);
+            third = id2;
+        }
+        if (edge_idx == -1)
+            return -1;
+        for (int j = 0; j < 2; j++) {
+            int v = edgeVertices[2*edge_idx+j];
+            if (v == -1)
+                continue;
+            for (int k = 0; k < 3; k++) {
+                int side = vertexEdges[3*v+k];
+                if (edgeSites[2*side] == third || edgeSites[2*side+1] == third)
+                    return v;
+            }
+        }
+        return -1;
+    }
+
+    // the three sites around a vertex
+    private void vertex_sites(int v, int[] triple) {
+        int n = 0;
+        triple[0] = triple[1] = triple[2] = -1;
+        for (int k = 0; k < 3 && vertexEdges[3*v+k] != -1; k++) {
+            int edge_idx = vertexEdges[3*v+k];
+            for (int j = 0; j < 2; j++) {
+                int id = edgeSites[2*edge_idx+j];
+                if (n < 3 && id != triple[0] && id != triple[1] && id != triple[2])
+                    triple[n++] = id;
+            }
+        }
+    }
+
+    private void add_vertex_edge(int v, int edge_idx) {
+        for (int k = 0; k < 3; k++)
+            if (vertexEdges[3*v+k] == -1) {
+                vertexEdges[3*v+k] = edge_idx;
+                return;
+            }
+    }
+
+    private void grow_vertex_edges(int n) {
+        if (vertexEdges.length >= 3*n)
+            return;
+        int[] grown = new int[Math.max(3*n, 2*vertexEdges.length)];
+        System.arraycopy(vertexEdges, 0, grown, 0, vertexEdges.length);
+        for (int i = vertexEdges.length; i < grown.length; i++)
+            grown[i] = -1;
+        vertexEdges = grown;
+    }
+
+    private int alloc_edge() {
+        if (!freeEdges.isEmpty())
+            return freeEdges.remove(freeEdges.size()-1);
+        return add_edge(0, 0, 0, -1, -1);
+    }
+
+    // a freed edge bisects no site, so that scans over the edges skip it
+    private void free_edge(int edge_idx) {
+        if (edgeTable.get(edgeSites[2*edge_idx], edgeSites[2*edge_idx+1]) == edge_idx)
+            edgeTable.remove(edgeSites[2*edge_idx], edgeSites[2*edge_idx+1]);
+        set_edge(edge_idx, 0, 0, 0, -1, -1);
+        freeEdges.add(edge_idx);
+    }
+
+    // append an edge with no vertices and no segment yet
+    private int add_edge(double a, double b, double c, int id0, int id1) {
+        if (edgeCount == edgeSites.length / 2) {
+            int capacity = Math.max(16, 2 * edgeCount);
+            edgeSites    = java.util.Arrays.copyOf(edgeSites, 2 * capacity);
+            edgeVertices = java.util.Arrays.copyOf(edgeVertices, 2 * capacity);
+            edgeABC      = java.util.Arrays.copyOf(edgeABC, 3 * capacity);
+            edgeLines    = java.util.Arrays.copyOf(edgeLines, 4 * capacity);
+        }
+        set_edge(edgeCount, a, b, c, id0, id1);
+        return edgeCount++;
+    }
+
+    // make room for a number of edges and vertices, all of them unbounded and not linked yet
+    private void reserve(int edges, int vertices) {
+        if (edgeSites.length < 2 * edges) {
+            edgeSites    = new int[2 * edges];
+            edgeVertices = new int[2 * edges];
+            edgeABC      = new double[3 * edges];
+            edgeLines    = new double[4 * edges];
+        }
+        if (vertexXY.length < 2 * vertices)
+            vertexXY = new double[2 * vertices];
+        grow_vertex_edges(vertices);
+    }
+
+    private void set_edge(int edge_idx, double a, double b, double c, int id0, int id1) {
+        edgeABC[3*edge_idx]   = a;
+        edgeABC[3*edge_idx+1] = b;
+        edgeABC[3*edge_idx+2] = c;
+        edgeSites[2*edge_idx]   = id0;
+        edgeSites[2*edge_idx+1] = id1;
+        edgeVertices[2*edge_idx]   = -1;
+        edgeVertices[2*edge_idx+1] = -1;
+        for (int k = 0; k < 4; k++)
+            edgeLines[4*edge_idx+k] = 0;
+    }
+
+    private int add_vertex(double x, double y) {
+        if (vertexCount == vertexXY.length / 2)
+            vertexXY = java.util.Arrays.copyOf(vertexXY, 2 * Math.max(16, 2 * vertexCount));
+        vertexXY[2*vertexCount]   = x;
+        vertexXY[2*vertexCount+1] = y;
+        return vertexCount++;
+    }
+
+    private int alloc_vertex(double x, double y) {
+        int v;
+        if (!freeVertices.isEmpty()) {
+            v = freeVertices.remove(freeVertices.size()-1);
+            vertexXY[2*v]   = x;
+            vertexXY[2*v+1] = y;
+        }
+        else {
+            v = add_vertex(x, y);
+            grow_vertex_edges(v+1);
+        }
+        for (int k = 0; k < 3; k++)
+            vertexEdges[3*v+k] = -1;
+        return v;
+    }
+
+    private void free_vertex(int v) {
+        for (int k = 0; k < 3; k++)
+            vertexEdges[3*v+k] = -1;
+        freeVertices.add(v);
     }
 
     //
@@ -230,56 +1643,46 @@ public class SFVoronoi {
     //    
 
     private Site nextone() {
-        if (curr_site.hasNext() == false)
+        if (next_site == cellCount)
             return null;
 
-        Site s = (Site)curr_site.next ();
-
-        return s;
+        return sweep[next_site++];
     }   
 
     private void readsites() {
 
         // find out the x & y ranges for all sites
-        nsites = sites.size ();        
-        
-        Point2D[] points = sites.values ().toArray (new Point2D[0]);
-        Integer[] keys   = sites.keySet ().toArray (new Integer[0]);
+        nsites = store.size ();        
         
-                
-        xmin = xmax = points[0].getX();
-        ymin = ymax = points[0].getY();
-        Point2D pt;
-        Site s;
-
-        // converting sites to mSites
-        // NOTE: this is an important step as mSites needs to be sorted for Voronoi construction
+        xmin = xmax = store.x(0);
+        ymin = ymax = store.y(0);
+
+        // the Site records, in the order the sweep needs them
+        // NOTE: sites at the same position share the record of the last of them
+        int[] order = store.sweep_order();
+        sweep = new Site[nsites];
+        cellCount = 0;
         for (int i=0; i<nsites; i++) {   
-            pt = points[i];
-            s  = new Site (pt.getX(), pt.getY());
-            s.num = (keys[i]).intValue ();
-            
-            mSites.put(pt, s);
+            int slot = order[i];
+            double x = store.x(slot);
+            double y = store.y(slot);
+
+            if (i + 1 < nsites && store.same_position(slot, order[i+1]))
+                continue;
+            Site s = new Site (x, y);
+            s.num = store.id(slot);
+            sweep[cellCount++] = s;
+            for (int k = i; k >= 0 && store.same_position(slot, order[k]); k--)
+                records[order[k]] = s;
                                     
-            if(pt.getX() < xmin) 
-                xmin = pt.getX();
-            else if(pt.getX() > xmax) 
-                xmax = pt.getX();
-            if(pt.getY() < ymin)
-                ymin = pt.getY();
-            else if(pt.getY() > ymax)
-                ymax = pt.getY();
-                            
-            //System.err.println ("storing num: [" + s.num + "] (" + pt.x + ", " + pt.y + ")");
-        }
-        
-        //ymin = ((Site)((Map.Entry)entries[0]).getValue()).coord.y;
-        //ymax = ((Site)((Map.Entry)entries[nsites-1]).getValue()).coord.y;
-        
-        Iterator<Site> it = mSites.values ().iterator ();
-        while (it.hasNext ()) {
-            s = it.next ();
-            //System.err.println ("sorted num: [" + s.num + "] (" + s.coord.x + ", " + s.coord.y + ")");
+            if(x < xmin) 
+                xmin = x;
+            else if(x > xmax) 
+                xmax = x;
+            if(y < ymin)
+                ymin = y;
+            else if(y > ymax)
+                ymax = y;
         }
                 
         //System.err.println ("xmax=" + xmax + " xmin=" + xmin + " ymax=" + ymax + " ymin=" + ymin);
@@ -295,7 +1698,8 @@ public class SFVoronoi {
     private boolean     triangulate, sorted, plot, debug;   
     private double      xmin, xmax, ymin, ymax, deltax, deltay;
     private int         nsites;
-    private Iterator    curr_site;
+    private Site[]      sweep;                  // the Site records sorted for the sweep
+    private int         next_site;
     private int         sqrt_nsites;
     private int         nvertices;
     private Site        bottomsite;             // Site *bottomsite;
@@ -307,6 +1711,10 @@ public class SFVoronoi {
     private Halfedge    ELleftend, ELrightend;  // Halfedge *ELleftend, *ELrightend;
     private int         ELhashsize;
     private Halfedge[]  ELhash;                 // Halfedge **ELhash;
+    private Halfedge[]  PQheap;                 // the events, for SWEEP_TREES
+    private long        PQseq;
+    private Halfedge    ELroot;                 // the beach line, for SWEEP_TREES
+    private int         ELseed;
     private Edge        DELETED;                // special marker
     
     private int     le;
@@ -473,6 +1881,7 @@ public class SFVoronoi {
     
     private void endpoint (Edge e, int lr, Site s) {
         e.ep[lr] = s;
+        add_vertex_edge(s.num, e.num);
 
         if(e.ep[re-lr] == null) 
             return;
@@ -483,6 +1892,7 @@ public class SFVoronoi {
     // return int change to void
     private void makevertex (Site v) {
         v.num = nvertices++;
+        grow_vertex_edges(nvertices);
         out_vertex (v);
     }
 
@@ -497,30 +1907,23 @@ public class SFVoronoi {
                  
         //System.out.println ("out_bisector [" + (float)e.a + ", " + (float)e.b + ", " + (float)e.c + "]");                        
         
-        line2d line = new line2d(e.a, e.b, e.c);
-        
-        line.bisectingID[0] = e.reg[le].num;
-        line.bisectingID[1] = e.reg[re].num;
-
-        Point2D pt1 = sites.get(line.bisectingID[0]);
-        Point2D pt2 = sites.get(line.bisectingID[1]);
+        add_edge(e.a, e.b, e.c, e.reg[le].num, e.reg[re].num);
 
-        mSites.get(pt1).edge_idxlist.add(e.num);
-        mSites.get(pt2).edge_idxlist.add(e.num);
-                
-        mEdges.add (line);
+        e.reg[le].edge_idxlist.add(e.num);
+        e.reg[re].edge_idxlist.add(e.num);
+        edgeTable.put(e.reg[le].num, e.reg[re].num, e.num);
     }
     
     private void out_ep (Edge e) {
-        mEdges.elementAt(e.num).vertexIndex[0] = (e.ep[le] != null) ? (e.ep[le].num) : (-1);
-        mEdges.elementAt(e.num).vertexIndex[1] = (e.ep[re] != null) ? (e.ep[re].num) : (-1);
+        edgeVertices[2*e.num]   = (e.ep[le] != null) ? (e.ep[le].num) : (-1);
+        edgeVertices[2*e.num+1] = (e.ep[re] != null) ? (e.ep[re].num) : (-1);
         
         if (!triangulate & plot) 
             clip_line (e);     
     }
     
     private void out_vertex (Site v) {
-        mVertices.add(v.coord);
+        add_vertex(v.coord.getX(), v.coord.getY());
     }
     
     
@@ -543,104 +1946,116 @@ public class SFVoronoi {
     
     // cut edges so that they are displayable
     private void clip_line(Edge e) {
-        Site s1, s2;
+        clip_line(e.num,
+                  e.ep[0] != null ? e.ep[0].coord : null,
+                  e.ep[1] != null ? e.ep[1].coord : null);
+    }
+
+    private void clip_line(int edge_idx, Point2D ep0, Point2D ep1) {
+        Point2D s1, s2;
         double x1, x2, y1, y2;
+        double a = edgeABC[3*edge_idx];
+        double b = edgeABC[3*edge_idx+1];
+        double c = edgeABC[3*edge_idx+2];
 
-        if(e.a == 1.0 && e.b >= 0.0) {
-            s1 = e.ep[1];
-            s2 = e.ep[0];
+        if(a == 1.0 && b >= 0.0) {
+            s1 = ep1;
+            s2 = ep0;
         }
         else {
-            s1 = e.ep[0];
-            s2 = e.ep[1];
+            s1 = ep0;
+            s2 = ep1;
         }
      
-        if(e.a == 1.0) {
+        if(a == 1.0) {
             
             y1 = pymin;
-            if (s1 != null && s1.coord.getY() > pymin)
-                y1 = s1.coord.getY();
+            if (s1 != null && s1.getY() > pymin)
+                y1 = s1.getY();
                 
             if (y1 > pymax)
                 return;
                 
-            x1 = e.c - e.b * y1;
+            x1 = c - b * y1;
             y2 = pymax;
             
-            if (s2 != null && s2.coord.getY() < pymax) 
-                y2 = s2.coord.getY();
+            if (s2 != null && s2.getY() < pymax) 
+                y2 = s2.getY();
                 
             if (y2 < pymin) 
                 return;
                 
-            x2 = e.c - e.b * y2;
+            x2 = c - b * y2;
             
             if (((x1> pxmax) & (x2>pxmax)) | ((x1 < pxmin) & (x2<pxmin))) 
                 return;
                 
             if (x1 > pxmax) {
                 x1 = pxmax; 
-                y1 = (e.c - x1)/e.b;
+                y1 = (c - x1)/b;
             }
             
             if (x1 < pxmin) {
                 x1 = pxmin; 
-                y1 = (e.c - x1)/e.b;
+                y1 = (c - x1)/b;
             }                        
             
             if (x2 > pxmax) {
                 x2 = pxmax; 
-                y2 = (e.c - x2)/e.b;
+                y2 = (c - x2)/b;
             }
             
             if (x2 < pxmin) {
                 x2 = pxmin; 
-                y2 = (e.c - x2)/e.b;
+                y2 = (c - x2)/b;
             }
         }
         else {
 
             x1 = pxmin;
-            if (s1 != null && s1.coord.getX() > pxmin) 
-                x1 = s1.coord.getX();
+            if (s1 != null && s1.getX() > pxmin) 
+                x1 = s1.getX();
                 
             if (x1 > pxmax) 
                 return;
                 
-            y1 = e . c - e . a * x1;
+            y1 = c - a * x1;
             x2 = pxmax;
-            if (s2 != null && s2.coord.getX() < pxmax) 
-                x2 = s2.coord.getX();
+            if (s2 != null && s2.getX() < pxmax) 
+                x2 = s2.getX();
                 
             if (x2 < pxmin) 
                 return;
                 
-            y2 = e.c - e.a * x2;
+            y2 = c - a * x2;
             
             if (((y1> pymax) & (y2>pymax)) | ((y1<pymin) & (y2<pymin))) 
                 return;
                 
             if (y1> pymax) {
                 y1 = pymax; 
-                x1 = (e.c - y1)/e.a;
+                x1 = (c - y1)/a;
             }
             
             if (y1 < pymin) {
-                y1 = pymin; x1 = (e.c - y1)/e.a;
+                y1 = pymin; x1 = (c - y1)/a;
             }
             
             if (y2 > pymax) {
                 y2 = pymax; 
-                x2 = (e.c - y2)/e.a;
+                x2 = (c - y2)/a;
             }
             
             if (y2<pymin) {
                 y2 = pymin; 
-                x2 = (e.c - y2)/e.a;
+                x2 = (c - y2)/a;
             }
         }
 
-		mEdges.elementAt(e.num).setLine(x1,y1,x2,y2);
+        edgeLines[4*edge_idx]   = x1;
+        edgeLines[4*edge_idx+1] = y1;
+        edgeLines[4*edge_idx+2] = x2;
+        edgeLines[4*edge_idx+3] = y2;
     }
 
     //////////////////////////////////////////////////////////////////////////
@@ -653,6 +2068,11 @@ public class SFVoronoi {
         he.vertex = v;
         he.ystar = v.coord.getY() + offset;
 
+        if (sweep_kind == SWEEP_TREES) {
+            heap_insert (he);
+            return;
+        }
+
         last = PQhash[PQbucket (he)];
         
         while ((next = last.PQnext) != null && 
@@ -667,7 +2087,11 @@ public class SFVoronoi {
     private void PQdelete (Halfedge he) {
         Halfedge last;
         
-        if(he.vertex != null) {
+        if(he.vertex != null && sweep_kind == SWEEP_TREES) {
+            heap_remove (he);
+            he.vertex = null;
+        }
+        else if(he.vertex != null) {
             last = PQhash[PQbucket (he)];
             while (last.PQnext != he) 
                 last = last.PQnext;
@@ -696,6 +2120,11 @@ public class SFVoronoi {
     
     private Point2D PQ_min () {
         Point2D answer = new Point2D.Double();
+
+        if (sweep_kind == SWEEP_TREES) {
+            answer.setLocation(PQheap[0].vertex.coord.getX(), PQheap[0].ystar);
+            return answer;
+        }
         
         while (PQhash[PQmin].PQnext == null) 
             PQmin++;
@@ -710,6 +2139,12 @@ public class SFVoronoi {
     
     private Halfedge PQextractmin () {
         Halfedge curr;
+
+        if (sweep_kind == SWEEP_TREES) {
+            curr = PQheap[0];
+            heap_remove (curr);
+            return curr;
+        }
         
         curr = PQhash[PQmin].PQnext;
         PQhash[PQmin].PQnext = curr.PQnext;
@@ -720,6 +2155,12 @@ public class SFVoronoi {
     private void PQinitialize () {
         PQcount = 0;
         PQmin = 0;
+
+        if (sweep_kind == SWEEP_TREES) {
+            PQheap = new Halfedge[4 * sqrt_nsites];
+            PQseq = 0;
+            return;
+        }
         PQhashsize = 4 * sqrt_nsites;
         PQhash = new Halfedge[PQhashsize];
         
@@ -729,6 +2170,66 @@ public class SFVoronoi {
         }
     }
     
+    // the heap keeps the order of the buckets: by ystar, then by x, then the last inserted first
+    private boolean heap_before (Halfedge h1, Halfedge h2) {
+        if (h1.ystar != h2.ystar)
+            return h1.ystar < h2.ystar;
+        if (h1.vertex.coord.getX() != h2.vertex.coord.getX())
+            return h1.vertex.coord.getX() < h2.vertex.coord.getX();
+        return h1.PQseq > h2.PQseq;
+    }
+
+    private void heap_insert (Halfedge he) {
+        if (PQcount == PQheap.length)
+            PQheap = java.util.Arrays.copyOf(PQheap, 2 * PQcount + 1);
+        he.PQseq = PQseq++;
+        he.PQindex = PQcount;
+        PQheap[PQcount++] = he;
+        heap_up (he.PQindex);
+    }
+
+    private void heap_remove (Halfedge he) {
+        int i = he.PQindex;
+        if (i == -1)
+            return;
+        Halfedge last = PQheap[--PQcount];
+        PQheap[PQcount] = null;
+        he.PQindex = -1;
+        if (last == he)
+            return;
+        PQheap[i] = last;
+        last.PQindex = i;
+        heap_up (i);
+        heap_down (last.PQindex);
+    }
+
+    private void heap_up (int i) {
+        Halfedge he = PQheap[i];
+        while (i > 0 && heap_before (he, PQheap[(i-1)/2])) {
+            PQheap[i] = PQheap[(i-1)/2];
+            PQheap[i].PQindex = i;
+            i = (i-1)/2;
+        }
+        PQheap[i] = he;
+        he.PQindex = i;
+    }
+
+    private void heap_down (int i) {
+        Halfedge he = PQheap[i];
+        while (2*i+1 < PQcount) {
+            int child = 2*i+1;
+            if (child+1 < PQcount && heap_before (PQheap[child+1], PQheap[child]))
+                child++;
+            if (!heap_before (PQheap[child], he))
+                break;
+            PQheap[i] = PQheap[child];
+            PQheap[i].PQindex = i;
+            i = child;
+        }
+        PQheap[i] = he;
+        he.PQindex = i;
+    }
+    
     //////////////////////////////////////////////////////////////////////////
     // edgelist.c
     //
@@ -736,6 +2237,10 @@ public class SFVoronoi {
     // initialize edgelist
     private void ELinitialize() {
 
+        // the tree holds the halfedges between the two ends of the beach line
+        ELroot = null;
+        ELseed = 0x2545F491;
+
         //freeinit (&hfl, sizeof (Halfedge));
         ELhashsize = 2 * sqrt_nsites;
         ELhash = new Halfedge[ELhashsize];
@@ -774,6 +2279,9 @@ public class SFVoronoi {
         newH.ELright        = lb.ELright;
         lb.ELright.ELleft   = newH;
         lb.ELright          = newH;        
+
+        if (sweep_kind == SWEEP_TREES)
+            ELtree_insert (lb, newH);
     }
     
     private Halfedge ELgethash (int b) {
@@ -796,6 +2304,21 @@ public class SFVoronoi {
     private Halfedge ELleftbnd (Point2D p) {
         int i, bucket;
         Halfedge he;
+
+        if (sweep_kind == SWEEP_TREES) {
+            // the beach line is ordered so that p is right of a prefix of it
+            Halfedge node = ELroot;
+            he = ELleftend;
+            while (node != null) {
+                if (right_of (node, p)) {
+                    he = node;
+                    node = node.ELrchild;
+                }
+                else
+                    node = node.ELlchild;
+            }
+            return he;
+        }
         
         /* Use hash table to get close to desired halfedge */
         bucket = (int)((p.getX() - xmin)/deltax * ELhashsize);
@@ -843,6 +2366,87 @@ public class SFVoronoi {
         he.ELleft.ELright   = he.ELright;
         he.ELright.ELleft   = he.ELleft;        
         he.ELedge           = DELETED;    
+
+        if (sweep_kind == SWEEP_TREES)
+            ELtree_remove (he);
+    }
+
+    // the beach line as a treap: in order it follows the ELleft/ELright list, and
+    // each halfedge has a lower priority than its children
+    private void ELtree_insert (Halfedge lb, Halfedge newH) {
+        newH.ELlchild = newH.ELrchild = null;
+        // xorshift, so that the same sites always give the same tree
+        ELseed ^= ELseed << 13;
+        ELseed ^= ELseed >>> 17;
+        ELseed ^= ELseed << 5;
+        newH.ELpriority = ELseed;
+
+        if (ELroot == null) {
+            newH.ELparent = null;
+            ELroot = newH;
+            return;
+        }
+        // right after lb: the leftmost place of the subtree right of lb, or of the whole tree
+        Halfedge at;
+        if (lb == ELleftend || lb.ELrchild != null) {
+            at = (lb == ELleftend) ? ELroot : lb.ELrchild;
+            while (at.ELlchild != null)
+                at = at.ELlchild;
+            at.ELlchild = newH;
+        }
+        else {
+            at = lb;
+            at.ELrchild = newH;
+        }
+        newH.ELparent = at;
+        while (newH.ELparent != null && newH.ELparent.ELpriority > newH.ELpriority)
+            ELtree_rotate (newH);
+    }
+
+    private void ELtree_remove (Halfedge he) {
+        while (he.ELlchild != null || he.ELrchild != null) {
+            Halfedge child;
+            if (he.ELlchild == null)
+                child = he.ELrchild;
+            else if (he.ELrchild == null)
+                child = he.ELlchild;
+            else
+                child = he.ELlchild.ELpriority < he.ELrchild.ELpriority ? he.ELlchild : he.ELrchild;
+            ELtree_rotate (child);
+        }
+        Halfedge parent = he.ELparent;
+        if (parent == null)
+            ELroot = null;
+        else if (parent.ELlchild == he)
+            parent.ELlchild = null;
+        else
+            parent.ELrchild = null;
+        he.ELparent = null;
+    }
+
+    // move a halfedge one level up, over its parent
+    private void ELtree_rotate (Halfedge x) {
+        Halfedge p = x.ELparent;
+        if (p.ELlchild == x) {
+            p.ELlchild = x.ELrchild;
+            if (x.ELrchild != null)
+                x.ELrchild.ELparent = p;
+            x.ELrchild = p;
+        }
+        else {
+            p.ELrchild = x.ELlchild;
+            if (x.ELlchild != null)
+                x.ELlchild.ELparent = p;
+            x.ELlchild = p;
+        }
+        x.ELparent = p.ELparent;
+        if (p.ELparent == null)
+            ELroot = x;
+        else if (p.ELparent.ELlchild == p)
+            p.ELparent.ELlchild = x;
+        else
+            p.ELparent.ELrchild = x;
+        p.ELparent = x;
     }
     
     private Halfedge ELright (Halfedge he) {
@@ -972,12 +2576,193 @@ public class SFVoronoi {
                 
         } // end while (true)        
 
-        // print out the edges (here we store them in 'mEdges')
+        // print out the edges (here we store them in the edge arrays)
         for (lbnd = ELright(ELleftend); lbnd != ELrightend; lbnd = ELright(lbnd)) {
             e = lbnd.ELedge;
             out_ep (e);
         }
           
     } // end voronoi()
+
+    // the sites as a map from their ids to their positions, each position made when it is read
+    private class SiteView extends AbstractMap<Integer, Point2D> {
+        private final Set<Map.Entry<Integer, Point2D>> entries = new AbstractSet<Map.Entry<Integer, Point2D>>() {
+            public Iterator<Map.Entry<Integer, Point2D>> iterator() {
+                return new Iterator<Map.Entry<Integer, Point2D>>() {
+                    private int k = 0;
+
+                    public boolean hasNext() {
+                        return k < store.size();
+                    }
+
+                    public Map.Entry<Integer, Point2D> next() {
+                        if (k >= store.size())
+                            throw new java.util.NoSuchElementException();
+                        Point2D p = new Point2D.Double(store.x(k), store.y(k));
+                        return new AbstractMap.SimpleImmutableEntry<Integer, Point2D>(store.id(k++), p);
+                    }
+                };
+            }
+
+            public int size() {
+                return store.size();
+            }
+        };
+
+        public Set<Map.Entry<Integer, Point2D>> entrySet() {
+            return entries;
+        }
+
+        public int size() {
+            return store.size();
+        }
+
+        public boolean containsKey(Object key) {
+            return key instanceof Integer && store.contains((Integer)key);
+        }
+
+        public Point2D get(Object key) {
+            return key instanceof Integer ? SFVoronoi.this.get((Integer)key) : null;
+        }
+    }
+
+    // the edges as line2d objects, each made on its first access after the diagram changed
+    private class EdgeView extends AbstractList<line2d> implements RandomAccess {
+        private line2d[] cache = new line2d[0];
+        private int      cache_version = -1;
+
+        public synchronized line2d get(int edge_idx) {
+            settle();
+            if (edge_idx < 0 || edge_idx >= edgeCount)
+                throw new IndexOutOfBoundsException("edge " + edge_idx + " of " + edgeCount);
+            if (cache_version != version || cache.length < edgeCount) {
+                cache = new line2d[edgeCount];
+                cache_version = version;
+            }
+            if (cache[edge_idx] == null) {
+                line2d line = new line2d(edgeABC[3*edge_idx], edgeABC[3*edge_idx+1], edgeABC[3*edge_idx+2]);
+                line.setLine(edgeLines[4*edge_idx], edgeLines[4*edge_idx+1], edgeLines[4*edge_idx+2], edgeLines[4*edge_idx+3]);
+                for (int j = 0; j < 2; j++) {
+                    line.bisectingID[j] = edgeSites[2*edge_idx+j];
+                    line.vertexIndex[j] = edgeVertices[2*edge_idx+j];
+                }
+                cache[edge_idx] = line;
+            }
+            return cache[edge_idx];
+        }
+
+        public int size() {
+            return get_edge_count();
+        }
+    }
+
+    // the vertices as Point2D objects, each made on its first access after the diagram changed
+    private class VertexView extends AbstractList<Point2D> implements RandomAccess {
+        private Point2D[] cache = new Point2D[0];
+        private int       cache_version = -1;
+
+        public synchronized Point2D get(int vertex_idx) {
+            settle();
+            if (vertex_idx < 0 || vertex_idx >= vertexCount)
+                throw new IndexOutOfBoundsException("vertex " + vertex_idx + " of " + vertexCount);
+            if (cache_version != version || cache.length < vertexCount) {
+                cache = new Point2D[vertexCount];
+                cache_version = version;
+            }
+            if (cache[vertex_idx] == null)
+                cache[vertex_idx] = new Point2D.Double(vertexXY[2*vertex_idx], vertexXY[2*vertex_idx+1]);
+            return cache[vertex_idx];
+        }
+
+        public int size() {
+            return get_vertex_count();
+        }
+    }
                            
+    // compare the two sweeps on uniform, clustered and gridded sites:
+    // java vast.SFVoronoi [number_of_sites [rounds]]
+    // times the sweeps on sites spread in different ways: with a thread count, one thread against
+    // that many threads, otherwise the hashed sweep against the tree sweep
+    public static void main(String[] args) {
+        int n = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        int rounds = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int threads = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+        java.util.Random r = new java.util.Random(123456);
+        if (threads > 0)
+            System.out.println("available processors " + Runtime.getRuntime().availableProcessors());
+
+        String[] names = { "uniform", "clustered", "grid" };
+        int[] ids = new int[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int kind = 0; kind < names.length; kind++) {
+            int side = (int)Math.ceil(Math.sqrt(n));
+            for (int i = 0; i < n; i++) {
+                ids[i] = i;
+                if (kind == 0) {
+                    xs[i] = r.nextDouble() * 1000000;
+                    ys[i] = r.nextDouble() * 1000000;
+                }
+                else if (kind == 1) {
+                    // a few tight clusters, plus some sites spread all over
+                    if (i % 100 == 0) {
+                        xs[i] = r.nextDouble() * 1000000;
+                        ys[i] = r.nextDouble() * 1000000;
+                    }
+                    else {
+                        int c = i % 5;
+                        xs[i] = 200000 + 150000 * c + r.nextGaussian() * 100;
+                        ys[i] = 500000 + r.nextGaussian() * 100;
+                    }
+                }
+                else {
+                    xs[i] = (i % side) * 1000;
+                    ys[i] = (i / side) * 1000;
+                }
+            }
+
+            for (int round = 0; round < rounds && threads > 0; round++) {
+                long timeold = System.nanoTime();
+                SFVoronoi single = new SFVoronoi(SWEEP_HASHED, 1);
+                single.insertAll(ids, xs, ys);
+                single.get_version();
+                long single_ms = (System.nanoTime() - timeold) / 1000000;
+
+                timeold = System.nanoTime();
+                SFVoronoi parallel = new SFVoronoi(SWEEP_HASHED, threads);
+                parallel.insertAll(ids, xs, ys);
+                parallel.get_version();
+                long parallel_ms = (System.nanoTime() - timeold) / 1000000;
+
+                // the same diagram: every edge of one bisects two sites that are neighbors in the other
+                boolean same = single.get_edge_count() == parallel.get_edge_count();
+                for (int e = 0; e < parallel.get_edge_count() && same; e++)
+                    same = single.get_edge(parallel.get_edge_site(e, 0), parallel.get_edge_site(e, 1)) != -1;
+                System.out.println(names[kind] + " sites " + n + " round " + round +
+                                   " 1 thread ms " + single_ms +
+                                   " " + threads + " threads ms " + parallel_ms +
+                                   " speed-up " + (parallel_ms > 0 ? (double)single_ms / parallel_ms : 0) +
+                                   " edges " + single.get_edge_count() + "/" + parallel.get_edge_count() +
+                                   (same ? " same" : " DIFFERENT"));
+            }
+
+            for (int round = 0; round < rounds && threads == 0; round++) {
+                long[] elapsed = new long[2];
+                int[] edges = new int[2];
+                for (int sweep = SWEEP_HASHED; sweep <= SWEEP_TREES; sweep++) {
+                    long timeold = System.nanoTime();
+                    SFVoronoi graph = new SFVoronoi(sweep);
+                    graph.insertAll(ids, xs, ys);
+                    graph.get_version();
+                    elapsed[sweep] = System.nanoTime() - timeold;
+                    edges[sweep] = graph.get_edge_count();
+                }
+                System.out.println(names[kind] + " sites " + n + " round " + round +
+                                   " hashed ms " + elapsed[SWEEP_HASHED] / 1000000 +
+                                   " trees ms " + elapsed[SWEEP_TREES] / 1000000 +
+                                   " edges " + edges[SWEEP_HASHED] + "/" + edges[SWEEP_TREES]);
+            }
+        }
+    }
+
 } // end of SFVoronoi
@@ -0,0 +1,263 @@
+/*
+ * VAST, a scalable peer-to-peer network for virtual environments
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package vast;
+
+import java.awt.geom.Point2D;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * Uniform grid over the sites, to find the site closest to a point
+ * without going through all of them. Queries do not change the grid,
+ * so many threads can query it at once as long as nobody adds or removes sites.
+ */
+public class SiteGrid
+{
+    private double      x0, y0, side;       // origin and side of the cells
+    private int         nx, ny;
+    private int[][]     ids;
+    private double[][]  xs, ys;
+    private int[]       count;
+    private int         size;
+    private int         capacity;           // number of sites the grid was sized for
+
+    public SiteGrid(Map<Integer, Point2D> sites) {
+        int n = sites.size();
+        int[] ids = new int[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        int k = 0;
+        Iterator<Map.Entry<Integer, Point2D>> entries = sites.entrySet().iterator();
+        while (entries.hasNext() && k < n) {
+            Map.Entry<Integer, Point2D> e = entries.next();
+            ids[k] = e.getKey();
+            xs[k]  = e.getValue().getX();
+            ys[k]  = e.getValue().getY();
+            k++;
+        }
+        init(ids, xs, ys, k);
+    }
+
+    /**
+     * Builds the grid over the sites ids[k] at (xs[k], ys[k]), for k from 0 to n-1
+     */
+    public SiteGrid(int[] ids, double[] xs, double[] ys, int n) {
+        init(ids, xs, ys, n);
+    }
+
+    SiteGrid(SiteStore store) {
+        int n = store.size();
+        int[] ids = new int[n];
+        double[] xs = new double[n];
+        double[] ys = new double[n];
+        for (int k = 0; k < n; k++) {
+            ids[k] = store.id(k);
+            xs[k]  = store.x(k);
+            ys[k]  = store.y(k);
+        }
+        init(ids, xs, ys, n);
+    }
+
+    private void init(int[] site_ids, double[] site_xs, double[] site_ys, int n) {
+        double xmin = Double.MAX_VALUE, xmax = -Double.MAX_VALUE;
+        double ymin = Double.MAX_VALUE, ymax = -Double.MAX_VALUE;
+        for (int k = 0; k < n; k++) {
+            xmin = Math.min(xmin, site_xs[k]);
+            xmax = Math.max(xmax, site_xs[k]);
+            ymin = Math.min(ymin, site_ys[k]);
+            ymax = Math.max(ymax, site_ys[k]);
+        }
+        if (n == 0)
+            xmin = xmax = ymin = ymax = 0;
+
+        // about two sites per cell
+        capacity = Math.max(n, 1);
+        double w = xmax - xmin;
+        double h = ymax - ymin;
+        int cells = Math.max(capacity / 2, 1);
+        side = Math.sqrt(w * h / cells);
+        if (!(side > 0))
+            side = Math.max(Math.max(w, h) / cells, 1.0);
+        nx = Math.min((int)(w / side) + 1, cells);
+        ny = Math.min((int)(h / side) + 1, cells);
+        side = Math.max(side, Math.max(w / nx, h / ny) * (1 + 1e-9));
+        x0 = xmin;
+        y0 = ymin;
+
+        ids   = new int[nx*ny][];
+        xs    = new double[nx*ny][];
+        ys    = new double[nx*ny][];
+        count = new int[nx*ny];
+        size  = 0;
+
+        for (int k = 0; k < n; k++)
+            add(site_ids[k], site_xs[k], site_ys[k]);
+    }
+
+    /**
+     * Adds a site to the grid
+     * @return false if the site falls outside the grid, or the grid is too crowded, and it should be rebuilt
+     */
+    public boolean add(int id, double x, double y) {
+        int c = cell_of(x, y);
+        if (c == -1 || size >= 4 * capacity)
+            return false;
+        if (ids[c] == null) {
+            ids[c] = new int[4];
+            xs[c]  = new double[4];
+            ys[c]  = new double[4];
+        }
+        else if (count[c] == ids[c].length) {
+            ids[c] = java.util.Arrays.copyOf(ids[c], 2 * count[c]);
+            xs[c]  = java.util.Arrays.copyOf(xs[c], 2 * count[c]);
+            ys[c]  = java.util.Arrays.copyOf(ys[c], 2 * count[c]);
+        }
+        ids[c][count[c]] = id;
+        xs[c][count[c]]  = x;
+        ys[c][count[c]]  = y;
+        count[c]++;
+        size++;
+        return true;
+    }
+
+    /**
+     * Removes a site from the grid, given the position it was added with
+     */
+    public void remove(int id, double x, double y) {
+        int c = cell_of(x, y);
+        if (c == -1)
+            return;
+        for (int k = 0; k < count[c]; k++)
+            if (ids[c][k] == id) {
+                int last = --count[c];
+                ids[c][k] = ids[c][last];
+                xs[c][k]  = xs[c][last];
+                ys[c][k]  = ys[c][last];
+                size--;
+                return;
+            }
+    }
+
+    /**
+     * Returns the site closest to a point, the one with the lowest id on ties, -1 if there are no sites
+     */
+    public int closest(double x, double y) {
+        if (size == 0)
+            return -1;
+
+        int cx = clamp((int)Math.floor((x - x0) / side), nx);
+        int cy = clamp((int)Math.floor((y - y0) / side), ny);
+        int best = -1;
+        double best_dist2 = Double.MAX_VALUE;
+
+        for (int r = 0; ; r++) {
+            // the ring of cells r steps away from the cell of the point
+            for (int iy = Math.max(cy - r, 0); iy <= Math.min(cy + r, ny - 1); iy++) {
+                boolean whole_row = (iy == cy - r || iy == cy + r);
+                int step = whole_row ? 1 : 2 * r;
+                for (int ix = cx - r; ix <= cx + r; ix += step) {
+                    if (ix < 0 || ix >= nx)
+                        continue;
+                    int c = iy * nx + ix;
+                    for (int k = 0; k < count[c]; k++) {
+                        double dx = xs[c][k] - x;
+                        double dy = ys[c][k] - y;
+                        double d = dx * dx + dy * dy;
+                        if (d < best_dist2 || (d == best_dist2 && ids[c][k] < best)) {
+                            best_dist2 = d;
+                            best = ids[c][k];
+                        }
+                    }
+                }
+            }
+
+            // anything not visited yet lies beyond the block of rings around the cell of the point
+            double bound = Double.MAX_VALUE;
+            if (cx - r > 0)
+                bound = Math.min(bound, x - (x0 + (cx - r) * side));
+            if (cx + r < nx - 1)
+                bound = Math.min(bound, x0 + (cx + r + 1) * side - x);
+            if (cy - r > 0)
+                bound = Math.min(bound, y - (y0 + (cy - r) * side));
+            if (cy + r < ny - 1)
+                bound = Math.min(bound, y0 + (cy + r + 1) * side - y);
+            if (bound == Double.MAX_VALUE)
+                return best;
+            if (best != -1 && bound > 0 && bound * bound > best_dist2)
+                return best;
+        }
+    }
+
+    /**
+     * Returns whether some site is closer to a point than a distance, given squared.
+     * Only the cells the circle covers are looked into, so a large circle that barely
+     * reaches the sites, like the ones centered far outside them, costs little
+     */
+    public boolean any_closer(double x, double y, double dist2) {
+        if (size == 0)
+            return false;
+
+        double d = Math.sqrt(dist2);
+        int iy_from = clamp((int)Math.floor((y - d - y0) / side), ny);
+        int iy_to = clamp((int)Math.floor((y + d - y0) / side), ny);
+        for (int iy = iy_from; iy <= iy_to; iy++) {
+            // the part of the row within the circle
+            double row_dy = Math.max(Math.max(y0 + iy * side - y, y - (y0 + (iy + 1) * side)), 0);
+            double half = Math.sqrt(Math.max(dist2 - row_dy * row_dy, 0));
+            int ix_from = clamp((int)Math.floor((x - half - x0) / side), nx);
+            int ix_to = clamp((int)Math.floor((x + half - x0) / side), nx);
+            for (int ix = ix_from; ix <= ix_to; ix++) {
+                int c = iy * nx + ix;
+                for (int k = 0; k < count[c]; k++) {
+                    double dx = xs[c][k] - x;
+                    double dy = ys[c][k] - y;
+                    if (dx * dx + dy * dy < dist2)
+                        return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds to a list the ids of the sites at exactly a point
+     */
+    public void at(double x, double y, java.util.List<Integer> found) {
+        int c = cell_of(x, y);
+        if (c == -1)
+            return;
+        for (int k = 0; k < count[c]; k++)
+            if (xs[c][k] == x && ys[c][k] == y)
+                found.add(ids[c][k]);
+    }
+
+    private int cell_of(double x, double y) {
+        double fx = (x - x0) / side;
+        double fy = (y - y0) / side;
+        if (!(fx >= 0 && fx < nx && fy >= 0 && fy < ny))
+            return -1;
+        return (int)fy * nx + (int)fx;
+    }
+
+    private static int clamp(int i, int n) {
+        return i < 0 ? 0 : (i >= n ? n - 1 : i);
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * VAST, a scalable peer-to-peer network for virtual environments
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package vast;
+
+/**
+ * The sites of a diagram as parallel arrays of ids and coordinates.
+ * Each site sits in a slot from 0 to size()-1; removing a site moves
+ * the last one into its slot, so slots are only stable between removals.
+ */
+class SiteStore
+{
+    private static final int    EMPTY = -1;
+
+    private int[]       ids = new int[16];
+    private double[]    xs  = new double[16];
+    private double[]    ys  = new double[16];
+    private int         size = 0;
+
+    // open addressing table from site id to slot, EMPTY where free
+    private int[]       keys  = new int[32];
+    private int[]       slots = new int[32];
+    private int         mask  = 31;
+
+    public SiteStore() {
+        java.util.Arrays.fill(keys, EMPTY);
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int id(int slot) {
+        return ids[slot];
+    }
+
+    public double x(int slot) {
+        return xs[slot];
+    }
+
+    public double y(int slot) {
+        return ys[slot];
+    }
+
+    public boolean contains(int id) {
+        return slot_of(id) != -1;
+    }
+
+    /**
+     * Returns the slot of a site, -1 if it is not stored
+     */
+    public int slot_of(int id) {
+        if (id < 0)
+            return -1;
+        for (int i = hash(id); ; i = (i + 1) & mask) {
+            if (keys[i] == id)
+                return slots[i];
+            if (keys[i] == EMPTY)
+                return -1;
+        }
+    }
+
+    /**
+     * Adds a site with a non negative id
+     * @return the slot of the site, -1 if the id is already stored
+     */
+    public int add(int id, double x, double y) {
+        if (id < 0 || contains(id))
+            return -1;
+        if (size == ids.length) {
+            ids = java.util.Arrays.copyOf(ids, 2 * size);
+            xs  = java.util.Arrays.copyOf(xs, 2 * size);
+            ys  = java.util.Arrays.copyOf(ys, 2 * size);
+        }
+        ids[size] = id;
+        xs[size]  = x;
+        ys[size]  = y;
+        put(id, size);
+        return size++;
+    }
+
+    /**
+     * Removes a site, moving the one in the last slot to the freed slot
+     * @return the freed slot, -1 if the id is not stored
+     */
+    public int remove(int id) {
+        int slot = slot_of(id);
+        if (slot == -1)
+            return -1;
+        erase(id);
+        int last = --size;
+        if (slot != last) {
+            ids[slot] = ids[last];
+            xs[slot]  = xs[last];
+            ys[slot]  = ys[last];
+            put(ids[slot], slot);
+        }
+        return slot;
+    }
+
+    /**
+     * Returns the slots sorted by y, then by x, as the sweep consumes them;
+     * sites at the same position keep the order of their slots
+     */
+    public int[] sweep_order() {
+        return sorted(false);
+    }
+
+    /**
+     * Returns the slots sorted by x, then by y
+     */
+    public int[] x_order() {
+        return sorted(true);
+    }
+
+    private int[] sorted(boolean by_x) {
+        int[] order = new int[size];
+        int[] tmp = new int[size];
+        for (int i = 0; i < size; i++)
+            order[i] = i;
+
+        // bottom-up merge sort, stable and without boxing
+        for (int width = 1; width < size; width *= 2) {
+            for (int lo = 0; lo < size; lo += 2 * width) {
+                int mid = Math.min(lo + width, size);
+                int hi = Math.min(lo + 2 * width, size);
+                int i = lo, j = mid, k = lo;
+                while (i < mid && j < hi)
+                    tmp[k++] = (by_x ? left_of(order[j], order[i]) : before(order[j], order[i])) ? order[j++] : order[i++];
+                while (i < mid)
+                    tmp[k++] = order[i++];
+                while (j < hi)
+                    tmp[k++] = order[j++];
+            }
+            int[] swap = order;
+            order = tmp;
+            tmp = swap;
+        }
+        return order;
+    }
+
+    // whether the site in slot s1 comes strictly before the one in slot s2 in the sweep
+    public boolean before(int s1, int s2) {
+        return ys[s1] < ys[s2] || (ys[s1] == ys[s2] && xs[s1] < xs[s2]);
+    }
+
+    // whether the site in slot s1 comes strictly before the one in slot s2 by x, then by y
+    public boolean left_of(int s1, int s2) {
+        return xs[s1] < xs[s2] || (xs[s1] == xs[s2] && ys[s1] < ys[s2]);
+    }
+
+    public boolean same_position(int s1, int s2) {
+        return xs[s1] == xs[s2] && ys[s1] == ys[s2];
+    }
+
+    private int hash(int id) {
+        long h = id * 0x9E3779B97F4A7C15L;
+        return (int)(h >>> 32) & mask;
+    }
+
+    private void put(int id, int slot) {
+        if (2 * (size + 1) > keys.length)
+            grow();
+        int i = hash(id);
+        while (keys[i] != EMPTY && keys[i] != id)
+            i = (i + 1) & mask;
+        keys[i] = id;
+        slots[i] = slot;
+    }
+
+    private void erase(int id) {
+        int i = hash(id);
+        while (keys[i] != id)
+            i = (i + 1) & mask;
+        // shift back the entries that probed past the freed slot
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (keys[j] == EMPTY)
+                break;
+            int home = hash(keys[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                slots[i] = slots[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+    }
+
+    private void grow() {
+        keys  = new int[2 * keys.length];
+        slots = new int[keys.length];
+        java.util.Arrays.fill(keys, EMPTY);
+        mask = keys.length - 1;
+        for (int s = 0; s < size; s++)
+            put(ids[s], s);
+    }
+}
@@ -0,0 +1,93 @@
+/*
+ * VAST, a scalable peer-to-peer network for virtual environments
+ * Copyright (C) 2020 Michele Albano (mialb@cs.aau.dk)
+ *
+ * This library is free software; you can redistribute it and/or
+ * modify it under the terms of the GNU Lesser General Public
+ * License as published by the Free Software Foundation; either
+ * version 2.1 of the License, or (at your option) any later version.
+ *
+ * This library is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ * Lesser General Public License for more details.
+ *
+ * You should have received a copy of the GNU Lesser General Public
+ * License along with this library; if not, write to the Free Software
+ * Foundation, Inc., 51 Franklin St, Fifth Floor, Boston, MA  02110-1301  USA
+ *
+ */
+
+package vast;
+
+import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Runs work on several threads. Work started from a task of a pool runs on that
+ * same pool, so nested parallel steps share the threads of the outermost one;
+ * otherwise a pool is made for the call and shut down when the call is over.
+ */
+public class Tasks
+{
+    private Tasks() {
+    }
+
+    /**
+     * Runs some work on a pool of a number of threads, where tasks it starts with
+     * run_all also run; in the calling thread if it already runs on a pool, or for one thread
+     */
+    public static <T> T run(int threads, Callable<T> work) {
+        if (threads <= 1 || ForkJoinTask.inForkJoinPool())
+            return call(work);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.submit(work).join();
+        }
+        finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Runs tasks on up to a number of threads and waits for all of them
+     * @return the results of the tasks, in their order
+     */
+    public static <T> Vector<T> run_all(int threads, final Vector<Callable<T>> tasks) {
+        Vector<T> results = new Vector<T>();
+        if (threads <= 1 || tasks.size() <= 1) {
+            for (int i = 0; i < tasks.size(); i++)
+                results.add(call(tasks.get(i)));
+            return results;
+        }
+        if (!ForkJoinTask.inForkJoinPool())
+            return run(threads, new Callable<Vector<T>>() {
+                public Vector<T> call() {
+                    return run_all(tasks.size(), tasks);
+                }
+            });
+
+        // the first task runs here while the others wait for a thread of the pool
+        Vector<ForkJoinTask<T>> forked = new Vector<ForkJoinTask<T>>();
+        for (int i = 1; i < tasks.size(); i++)
+            forked.add(ForkJoinTask.adapt(tasks.get(i)).fork());
+        results.add(call(tasks.get(0)));
+        for (int i = 0; i < forked.size(); i++)
+            results.add(forked.get(i).join());
+        return results;
+    }
+
+    private static <T> T call(Callable<T> work) {
+        try {
+            return work.call();
+        }
+        catch (RuntimeException e) {
+            throw e;
+        }
+        catch (Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+}